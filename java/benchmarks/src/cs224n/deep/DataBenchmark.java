@@ -0,0 +1,90 @@
+package cs224n.deep;
+
+import org.ejml.simple.SimpleMatrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loading the data: reading the train set as Datum or directly as windows, encoding the windows (what yieldExamples
+ * did), the vocabulary and the word vectors.
+ * The word vectors are not part of the repository, a random file of the same shape is written for the benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class DataBenchmark {
+
+    @Param({"7"})
+    public int windowSize;
+
+    @Param({"50"})
+    public int wordSize;
+
+    @Param({"../data"})
+    public String dataDir;
+
+    private Vocabulary vocab;
+    private List<Datum> trainData;
+    private File wordVectors;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        FeatureFactory.vocab = new Vocabulary();
+        vocab = FeatureFactory.initializeVocab(dataDir + "/vocab.txt");
+        trainData = FeatureFactory.read(dataDir + "/train");
+
+        wordVectors = File.createTempFile("wordVectors", ".txt");
+        Random rand = new Random(0);
+        PrintWriter out = new PrintWriter(wordVectors);
+        for (int w = 0; w < vocab.size(); w++) {
+            for (int j = 0; j < wordSize; j++) {
+                if (j > 0) {
+                    out.print(' ');
+                }
+                out.print((float) rand.nextGaussian());
+            }
+            out.println();
+        }
+        out.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        wordVectors.delete();
+    }
+
+    @Benchmark
+    public List<Datum> read() throws IOException {
+        return FeatureFactory.read(dataDir + "/train");
+    }
+
+    @Benchmark
+    public Corpus readCorpus() throws IOException {
+        return CorpusReader.readCorpus(dataDir + "/train", vocab, TrainingBenchmark.LABELS, windowSize, false);
+    }
+
+    @Benchmark
+    public Corpus encode() {
+        return new Corpus(trainData, vocab, TrainingBenchmark.LABELS, windowSize, false);
+    }
+
+    @Benchmark
+    public Vocabulary initializeVocab() throws IOException {
+        FeatureFactory.vocab = new Vocabulary();
+        return FeatureFactory.initializeVocab(dataDir + "/vocab.txt");
+    }
+
+    @Benchmark
+    public SimpleMatrix readWordVectors() throws IOException {
+        return MatrixReader.read(wordVectors.getPath());
+    }
+}
@@ -0,0 +1,69 @@
+package cs224n.deep;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WindowModel.predictLabel on one window of the dev set, with and without the projection cache
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InferenceBenchmark {
+
+    @Param({"7"})
+    public int windowSize;
+
+    @Param({"50"})
+    public int wordSize;
+
+    @Param({"100"})
+    public int hiddenSize;
+
+    @Param({"0", "20000"})
+    public int projectionCacheWords;
+
+    @Param({"false", "true"})
+    public boolean fastMath;
+
+    @Param({"../data"})
+    public String dataDir;
+
+    private WindowModel model;
+    private List<List<Datum>> windows;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Utils.fastMath = fastMath;
+        model = TrainingBenchmark.newModel(dataDir, windowSize, wordSize, hiddenSize);
+        model.projectionCacheWords = projectionCacheWords;
+        model.getProjectionCache();
+
+        Corpus examples = CorpusReader.readCorpus(dataDir + "/dev", model.vocab, TrainingBenchmark.LABELS,
+                windowSize, true);
+        windows = new ArrayList<List<Datum>>();
+        for (int w = 0; w < Math.min(examples.size(), 4096); w++) {
+            List<Datum> window = new ArrayList<Datum>();
+            for (int i = 0; i < windowSize; i++) {
+                window.add(new Datum(examples.text[examples.windows[w] + i], "O"));
+            }
+            windows.add(window);
+        }
+        next = 0;
+    }
+
+    @Benchmark
+    public String predictLabel() {
+        List<Datum> window = windows.get(next);
+        next = (next + 1) % windows.size();
+        return model.predictLabel(window);
+    }
+}
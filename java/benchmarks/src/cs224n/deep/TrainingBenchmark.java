@@ -0,0 +1,82 @@
+package cs224n.deep;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One step of WindowModel.updateWeights on the windows of the dev set, per mini-batch of batchSize windows
+ * (per example with the default batchSize of 1), for each optimizer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TrainingBenchmark {
+
+    static final List<String> LABELS = Arrays.asList("O", "ORG", "PER", "LOC", "MISC");
+
+    @Param({"7"})
+    public int windowSize;
+
+    @Param({"50"})
+    public int wordSize;
+
+    @Param({"100"})
+    public int hiddenSize;
+
+    @Param({"1"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean fastMath;
+
+    @Param({"sgd", "adagrad", "adam"})
+    public String optimizer;
+
+    @Param({"../data"})
+    public String dataDir;
+
+    private WindowModel model;
+    private Corpus examples;
+    private Workspace ws;
+    private int next;
+
+    /**
+     * Model with random weights, no weight decay so that the lazy scales never need folding
+     */
+    static WindowModel newModel(String dataDir, int windowSize, int wordSize, int hiddenSize) throws IOException {
+        FeatureFactory.vocab = new Vocabulary();
+        Vocabulary vocab = FeatureFactory.initializeVocab(dataDir + "/vocab.txt");
+        WindowModel model = new WindowModel(
+                windowSize, wordSize, hiddenSize,
+                1, 1e-2, 1e-2, 1e-2, .5, 0, 1., 1.,
+                vocab, LABELS);
+        model.initVocab();
+        model.initWeights();
+        return model;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Utils.fastMath = fastMath;
+        model = newModel(dataDir, windowSize, wordSize, hiddenSize);
+        model.batchSize = batchSize;
+        model.optimizer = optimizer;
+        examples = CorpusReader.readCorpus(dataDir + "/dev", model.vocab, LABELS, windowSize, false);
+        ws = model.newWorkspace();
+        next = 0;
+    }
+
+    @Benchmark
+    public void updateWeights() {
+        int from = next;
+        next = (next + batchSize) % (examples.size() - batchSize);
+        model.updateWeights(examples, from, from + batchSize, ws, 1e-2, 1e-2, 1e-2);
+    }
+}
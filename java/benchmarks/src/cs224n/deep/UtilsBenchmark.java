@@ -0,0 +1,112 @@
+package cs224n.deep;
+
+import org.ejml.simple.SimpleMatrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kernels of Utils, both the versions allocating a new matrix and the in-place ones, with the exact library functions
+ * and in fastMath mode
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+
+    @Param({"7"})
+    public int windowSize;
+
+    @Param({"50"})
+    public int wordSize;
+
+    @Param({"100"})
+    public int hiddenSize;
+
+    @Param({"5"})
+    public int K;
+
+    @Param({"false", "true"})
+    public boolean fastMath;
+
+    private SimpleMatrix scores, scoresOut;
+    private double[] error;
+    private int[] predicted;
+    private SimpleMatrix z, zOut;
+    private List<SimpleMatrix> wordVectors;
+    private SimpleMatrix dropout;
+    private Random rand;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Utils.fastMath = fastMath;
+        Random rand = new Random(0);
+        scores = SimpleMatrix.random(K, 1, -1, 1, rand);
+        scoresOut = new SimpleMatrix(K, 1);
+        error = new double[K];
+        predicted = new int[1];
+        z = SimpleMatrix.random(hiddenSize, 1, -1, 1, rand);
+        zOut = new SimpleMatrix(hiddenSize, 1);
+        wordVectors = new ArrayList<SimpleMatrix>();
+        for (int i = 0; i < windowSize; i++) {
+            wordVectors.add(SimpleMatrix.random(wordSize, 1, -1, 1, rand));
+        }
+        dropout = new SimpleMatrix(windowSize * wordSize + 1, 1);
+        this.rand = rand;
+    }
+
+    @Benchmark
+    public SimpleMatrix softmax() {
+        return Utils.softmax(scores);
+    }
+
+    @Benchmark
+    public SimpleMatrix softmaxInPlace() {
+        Utils.softmax(scores.getMatrix(), scoresOut.getMatrix());
+        return scoresOut;
+    }
+
+    /**
+     * Probabilities, error, cross-entropy and prediction of one window, the scores being copied first as the kernel
+     * works in place
+     */
+    @Benchmark
+    public double softmaxCrossEntropy() {
+        System.arraycopy(scores.getMatrix().data, 0, scoresOut.getMatrix().data, 0, K);
+        return Utils.softmaxCrossEntropy(scoresOut.getMatrix().data, 0, K, K / 2, error, predicted);
+    }
+
+    @Benchmark
+    public SimpleMatrix elementwiseApplyTanh() {
+        return Utils.elementwiseApplyTanh(z);
+    }
+
+    @Benchmark
+    public SimpleMatrix elementwiseApplyTanhInPlace() {
+        Utils.elementwiseApplyTanh(z.getMatrix(), zOut.getMatrix());
+        return zOut;
+    }
+
+    @Benchmark
+    public SimpleMatrix elementwiseApplyTanhDerivativeInPlace() {
+        Utils.elementwiseApplyTanhDerivative(z.getMatrix(), zOut.getMatrix());
+        return zOut;
+    }
+
+    @Benchmark
+    public SimpleMatrix fillDropvector() {
+        Utils.fillDropvector(dropout.getMatrix(), .5, rand);
+        return dropout;
+    }
+
+    @Benchmark
+    public SimpleMatrix concatenateWithBias() {
+        return Utils.concatenateWithBias(wordVectors);
+    }
+}
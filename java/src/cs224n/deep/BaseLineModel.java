@@ -1,6 +1,5 @@
 package cs224n.deep;
 
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
@@ -28,7 +27,7 @@ public class BaseLineModel {
 	public void test(List<Datum> data) throws IOException
 	{
 		System.out.println("-- Training data --");
-		FileWriter fw = new FileWriter("baseline_prediction.out");
+		OutputBuffer out = new OutputBuffer("baseline_prediction.out", 1 << 20);
 		for(Datum dat : data)
 		{
 			String word = dat.word;
@@ -38,10 +37,10 @@ public class BaseLineModel {
 			{
 				predLabel = "O";
 			}
-			fw.write(word + '\t');
-			fw.write(label + '\t');
-			fw.write(predLabel + '\n');
+			out.append(word).append('\t');
+			out.append(label).append('\t');
+			out.append(predLabel).append('\n');
 		}
-		fw.close();
+		out.close();
 	}
 }
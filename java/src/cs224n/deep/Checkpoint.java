@@ -0,0 +1,277 @@
+package cs224n.deep;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Binary model checkpoint, replacing the CSV dumps of U, W and L.
+ *
+ * Layout (little-endian): a header with the magic number, the format version, the size in bytes of a value (8 for
+ * doubles, 4 for floats as written by float32 models), the dimensions (windowSize, wordSize, hiddenSize, number of
+ * words, number of labels), the fingerprint of the vocabulary and the labels, padded to a multiple of 8 bytes. It is
+ * followed by the blocks of U, W and L, row-major.
+ *
+ * Files are read through a memory map: U, W and L can be used in place as read-only views, or copied in bulk in the
+ * matrices of a model. Either precision can be loaded in a model of either precision.
+ */
+public class Checkpoint {
+
+    public static final int MAGIC = 0x4E455243; // "NERC"
+    public static final int VERSION = 1;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int CHUNK = 1 << 20;
+
+    public final int valueSize, windowSize, wordSize, hiddenSize, numWords, K;
+    public final long vocabFingerprint;
+    public final List<String> labels;
+
+    // Read-only little-endian views on the blocks of the mapped file, valueSize bytes per value
+    public final ByteBuffer U, W, L;
+
+    private Checkpoint(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a model checkpoint");
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported checkpoint version " + version);
+        }
+        valueSize = buffer.getInt();
+        if (valueSize != 8 && valueSize != 4) {
+            throw new IOException("Unsupported value size " + valueSize);
+        }
+        windowSize = buffer.getInt();
+        wordSize = buffer.getInt();
+        hiddenSize = buffer.getInt();
+        numWords = buffer.getInt();
+        K = buffer.getInt();
+        vocabFingerprint = buffer.getLong();
+
+        List<String> labelList = new ArrayList<String>();
+        for (int k = 0; k < K; k++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            labelList.add(new String(bytes, UTF8));
+        }
+        labels = Collections.unmodifiableList(labelList);
+        buffer.position(align(buffer.position()));
+
+        U = block(buffer, K * (hiddenSize + 1));
+        W = block(buffer, hiddenSize * (windowSize * wordSize + 1));
+        L = block(buffer, numWords * wordSize);
+    }
+
+    private ByteBuffer block(ByteBuffer buffer, int size) throws IOException {
+        if (buffer.remaining() < (long) valueSize * size) {
+            throw new IOException("Truncated checkpoint");
+        }
+        ByteBuffer slice = buffer.slice();
+        slice.limit(valueSize * size);
+        buffer.position(buffer.position() + valueSize * size);
+        return slice.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    /**
+     * Maps a checkpoint file, nothing is copied
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static Checkpoint open(String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Checkpoint too large to be mapped: " + filename);
+            }
+            // the mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return new Checkpoint(buffer);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Checks that the checkpoint matches the dimensions, labels and vocabulary of the model
+     * @param model
+     * @throws IOException
+     */
+    public void check(WindowModel model) throws IOException {
+        if (windowSize != model.windowSize || wordSize != model.wordSize || hiddenSize != model.hiddenSize
+                || numWords != model.numWords || K != model.K) {
+            throw new IOException(String.format(
+                    "Checkpoint dimensions (window %d, word %d, hidden %d, words %d, labels %d) do not match the model",
+                    windowSize, wordSize, hiddenSize, numWords, K));
+        }
+        if (!labels.equals(model.labels)) {
+            throw new IOException("Checkpoint labels " + labels + " do not match the model labels " + model.labels);
+        }
+        if (vocabFingerprint != model.vocab.fingerprint()) {
+            throw new IOException("Checkpoint vocabulary does not match the model vocabulary");
+        }
+    }
+
+    /**
+     * Copies U, W and L in the model, L is stored in the precision of the model
+     * @param model
+     * @throws IOException if the checkpoint does not match the model
+     */
+    public void loadInto(WindowModel model) throws IOException {
+        check(model);
+        model.loadWeightsU(toMatrix(U, K, hiddenSize + 1));
+        model.loadWeightsW(toMatrix(W, hiddenSize, windowSize * wordSize + 1));
+        if (model.float32 && valueSize == 4) {
+            float[] data = new float[numWords * wordSize];
+            L.duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(data);
+            model.loadVocab(new Embeddings.Floats(numWords, wordSize, data));
+        } else {
+            model.loadVocab(toMatrix(L, numWords, wordSize));
+        }
+    }
+
+    /**
+     * Creates a model for inference from the checkpoint, in the precision of the checkpoint
+     * @param vocab: vocabulary the model was trained with
+     * @return
+     * @throws IOException if the checkpoint does not match the vocabulary
+     */
+    public WindowModel newModel(Vocabulary vocab) throws IOException {
+        // only the dimensions matter, the model is not trained
+        WindowModel model = new WindowModel(
+                windowSize, wordSize, hiddenSize,
+                0, 0, 0, 0, 1, 0, 1, 1,
+                vocab, labels);
+        model.float32 = valueSize == 4;
+        loadInto(model);
+        return model;
+    }
+
+    private SimpleMatrix toMatrix(ByteBuffer block, int rows, int cols) {
+        DenseMatrix64F matrix = new DenseMatrix64F(rows, cols);
+        ByteBuffer values = block.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (valueSize == 8) {
+            values.asDoubleBuffer().get(matrix.data, 0, rows * cols);
+        } else {
+            for (int i = 0; i < rows * cols; i++) {
+                matrix.data[i] = values.getFloat(4 * i);
+            }
+        }
+        return SimpleMatrix.wrap(matrix);
+    }
+
+    /**
+     * Writes U, W and L of the model, the lazy decay must have been applied.
+     * A float32 model is written in single precision.
+     * @param model
+     * @param filename
+     * @throws IOException
+     */
+    public static void write(WindowModel model, String filename) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(64 + 8 * model.K + labelBytes(model.labels))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        int valueSize = model.float32 ? 4 : 8;
+        header.putInt(valueSize);
+        header.putInt(model.windowSize);
+        header.putInt(model.wordSize);
+        header.putInt(model.hiddenSize);
+        header.putInt(model.numWords);
+        header.putInt(model.K);
+        header.putLong(model.vocab.fingerprint());
+        for (String label : model.labels) {
+            byte[] bytes = label.getBytes(UTF8);
+            header.putInt(bytes.length);
+            header.put(bytes);
+        }
+        header.position(align(header.position()));
+        header.flip();
+
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            writeFully(channel, header);
+
+            ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            writeBlock(channel, chunk, model.U.getMatrix().data, model.K * (model.hiddenSize + 1), valueSize);
+            writeBlock(channel, chunk, model.W.getMatrix().data,
+                    model.hiddenSize * (model.windowSize * model.wordSize + 1), valueSize);
+            int size = model.numWords * model.wordSize;
+            if (model.L instanceof Embeddings.Floats && valueSize == 4) {
+                writeBlock(channel, chunk, ((Embeddings.Floats) model.L).data, size);
+            } else {
+                writeBlock(channel, chunk, model.L.toMatrix().getMatrix().data, size, valueSize);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    static int labelBytes(List<String> labels) {
+        int size = 0;
+        for (String label : labels) {
+            size += label.getBytes(UTF8).length;
+        }
+        return size;
+    }
+
+    private static void writeBlock(FileChannel channel, ByteBuffer chunk, double[] data, int size, int valueSize)
+            throws IOException {
+        if (data.length < size) {
+            throw new IOException("Matrix smaller than its dimensions");
+        }
+        int perChunk = chunk.capacity() / valueSize;
+        for (int offset = 0; offset < size; offset += perChunk) {
+            int length = Math.min(perChunk, size - offset);
+            chunk.clear();
+            if (valueSize == 8) {
+                chunk.asDoubleBuffer().put(data, offset, length);
+            } else {
+                for (int i = 0; i < length; i++) {
+                    chunk.putFloat(4 * i, (float) data[offset + i]);
+                }
+            }
+            chunk.limit(valueSize * length);
+            writeFully(channel, chunk);
+        }
+    }
+
+    private static void writeBlock(FileChannel channel, ByteBuffer chunk, float[] data, int size) throws IOException {
+        if (data.length < size) {
+            throw new IOException("Matrix smaller than its dimensions");
+        }
+        int perChunk = chunk.capacity() / 4;
+        for (int offset = 0; offset < size; offset += perChunk) {
+            int length = Math.min(perChunk, size - offset);
+            chunk.clear();
+            chunk.asFloatBuffer().put(data, offset, length);
+            chunk.limit(4 * length);
+            writeFully(channel, chunk);
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package cs224n.deep;
+
+import java.util.List;
+
+/**
+ * A data set encoded once in flat arrays: the index in L of every word and the index of every label, each sentence
+ * being padded with windowSize / 2 start tokens before and windowSize / 2 end tokens after.
+ * A window is only the offset of its first word in these arrays.
+ *
+ * Every word of a sentence gets a window except the last one, as the training windows always did, so that
+ * precisions stay comparable.
+ */
+public class Corpus {
+
+    public final int windowSize;
+
+    // Index in L and label index of every (padded) position
+    public final int[] words;
+    public final int[] labels;
+
+    // Offset of the first word of each window
+    public final int[] windows;
+
+    // Original word of every position, only kept when needed to write predictions (null otherwise)
+    public final String[] text;
+
+    /**
+     * Encodes data as read by FeatureFactory, sentences starting with START_TOKEN and ending with END_TOKEN
+     * @param data
+     * @param vocab: index in L of each word, unknown words are mapped to UNK_TOKEN
+     * @param labelList: labels, data should only contain these labels
+     * @param windowSize
+     * @param keepText: keep the original words
+     */
+    public Corpus(List<Datum> data, Vocabulary vocab, List<String> labelList, int windowSize,
+                  boolean keepText) {
+        this.windowSize = windowSize;
+        int half = windowSize / 2;
+
+        // First pass: count positions and windows
+        int numPositions = 0;
+        int numWindows = 0;
+        int sentenceLength = 0;
+        for (Datum datum : data) {
+            if (datum.word.equals(FeatureFactory.START_TOKEN)) {
+                sentenceLength = 0;
+            } else if (datum.word.equals(FeatureFactory.END_TOKEN)) {
+                numPositions += sentenceLength + 2 * half;
+                numWindows += Math.max(sentenceLength - 1, 0);
+            } else {
+                sentenceLength++;
+            }
+        }
+
+        words = new int[numPositions];
+        labels = new int[numPositions];
+        windows = new int[numWindows];
+        text = keepText ? new String[numPositions] : null;
+
+        // Second pass: encode
+        int position = 0;
+        int window = 0;
+        int sentenceStart = 0;
+        for (Datum datum : data) {
+            int word = vocab.indexOrUnknown(datum.word);
+            int label = labelList.indexOf(datum.label);
+            if (label < 0) {
+                throw new IllegalArgumentException("Unknown label " + datum.label + " for word " + datum.word);
+            }
+
+            if (datum.word.equals(FeatureFactory.START_TOKEN)) {
+                sentenceStart = position;
+                for (int i = 0; i < half; i++) {
+                    set(position++, word, label, datum.word);
+                }
+            } else if (datum.word.equals(FeatureFactory.END_TOKEN)) {
+                for (int i = 0; i < half; i++) {
+                    set(position++, word, label, datum.word);
+                }
+                // Windows of the sentence, first one starts on the padding
+                int length = position - sentenceStart - 2 * half;
+                for (int i = 0; i < length - 1; i++) {
+                    windows[window++] = sentenceStart + i;
+                }
+            } else {
+                set(position++, word, label, datum.word);
+            }
+        }
+    }
+
+    /**
+     * Wraps arrays already encoded, as by CorpusReader
+     */
+    Corpus(int windowSize, int[] words, int[] labels, int[] windows, String[] text) {
+        this.windowSize = windowSize;
+        this.words = words;
+        this.labels = labels;
+        this.windows = windows;
+        this.text = text;
+    }
+
+    /**
+     * The same windows for a smaller window size, sharing the words, labels and text of this corpus, to encode a data
+     * set once for several window sizes: the padding of this corpus is longer than needed, so each window only starts
+     * (this.windowSize - windowSize) / 2 positions later.
+     * @param windowSize: odd, at most the window size of this corpus
+     * @return
+     */
+    public Corpus withWindowSize(int windowSize) {
+        if (windowSize == this.windowSize) {
+            return this;
+        }
+        if (windowSize > this.windowSize || windowSize % 2 != 1) {
+            throw new IllegalArgumentException("Window size " + windowSize + " does not fit in windows of "
+                    + this.windowSize);
+        }
+        int shift = this.windowSize / 2 - windowSize / 2;
+        int[] shifted = new int[windows.length];
+        for (int i = 0; i < windows.length; i++) {
+            shifted[i] = windows[i] + shift;
+        }
+        return new Corpus(windowSize, words, labels, shifted, text);
+    }
+
+    private void set(int position, int word, int label, String original) {
+        words[position] = word;
+        labels[position] = label;
+        if (text != null) {
+            text[position] = original;
+        }
+    }
+
+    /**
+     * @return number of windows
+     */
+    public int size() {
+        return windows.length;
+    }
+
+    /**
+     * @return position of the word in the middle of the window
+     */
+    public int center(int window) {
+        return windows[window] + windowSize / 2;
+    }
+}
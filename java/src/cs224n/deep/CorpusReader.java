@@ -0,0 +1,472 @@
+package cs224n.deep;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Single-pass reader for the CoNLL files: one "word label" line per token, empty lines between sentences and
+ * -DOCSTART- lines between documents.
+ *
+ * The file is scanned byte by byte, lines are split on whitespace without regex and words are lowercased in a reused
+ * buffer, so that ASCII words are looked up in the vocabulary without creating a String. Same conventions as
+ * FeatureFactory.read: a period ends the sentence and is not a token itself.
+ *
+ * The file is read through a direct buffer of BUFFER_SIZE bytes, refilled at line boundaries (grown for a longer
+ * line), so that memory does not depend on the size of the file. readCorpus, which keeps the whole file encoded
+ * anyway, maps it instead.
+ */
+public class CorpusReader implements Closeable {
+
+    private static final byte[] DOC_START = bytes(FeatureFactory.DOC_START);
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // Bytes of the file from an offset, the valid ones are the length first ones
+    private ByteBuffer buffer;
+    private int length;
+    private int position;
+    private int line;
+    // File read through the buffer, null when it is mapped or entirely read
+    private FileChannel channel;
+
+    // Current word, lowercased, and whether it only has ASCII characters
+    private byte[] word = new byte[64];
+    private int wordLength;
+    private boolean ascii;
+    // Position of the current label in the buffer
+    private int labelFrom, labelTo;
+
+    // Labels already seen, to avoid a String per token
+    private final List<String> seenLabels = new ArrayList<String>();
+
+    /**
+     * Reads the file through a buffer of BUFFER_SIZE bytes
+     * @param filename
+     * @throws IOException
+     */
+    public CorpusReader(String filename) throws IOException {
+        this(filename, BUFFER_SIZE);
+    }
+
+    CorpusReader(String filename, int bufferSize) throws IOException {
+        channel = new FileInputStream(filename).getChannel();
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        length = 0;
+    }
+
+    /**
+     * Reads a file already in memory
+     */
+    private CorpusReader(ByteBuffer mapped) {
+        buffer = mapped;
+        length = mapped.limit();
+    }
+
+    private static byte[] bytes(String ascii) {
+        byte[] bytes = new byte[ascii.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ascii.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Whitespace as in the regex \s, except the line feed
+     */
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    private int skipSpaces(int i) {
+        while (i < length && isSpace(buffer.get(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private int skipToken(int i) {
+        byte b;
+        while (i < length && (b = buffer.get(i)) != '\n' && !isSpace(b)) {
+            i++;
+        }
+        return i;
+    }
+
+    private int skipLine(int i) {
+        while (i < length && buffer.get(i) != '\n') {
+            i++;
+        }
+        return Math.min(i + 1, length);
+    }
+
+    /**
+     * Makes sure that the line from position is entirely in the buffer, or that it ends the file: if it is not, moves
+     * it to the start of the buffer (grown if the line fills it) and reads the next bytes of the file after it
+     */
+    private void fillLine() throws IOException {
+        int i = position;
+        while (channel != null) {
+            while (i < length && buffer.get(i) != '\n') {
+                i++;
+            }
+            if (i < length) {
+                return;
+            }
+
+            int pending = length - position;
+            buffer.limit(length).position(position);
+            if (pending == buffer.capacity()) {
+                buffer = ByteBuffer.allocateDirect(2 * buffer.capacity()).put(buffer);
+            } else {
+                buffer.compact();
+            }
+            int read = channel.read(buffer);
+            length = buffer.position();
+            position = 0;
+            i = pending;
+            if (read < 0) {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Closes the file if it is still read, next then only returns the tokens already in the buffer
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /**
+     * Moves to the next token, skipping empty lines and document separators
+     * @return false at the end of the file
+     * @throws IOException if a line has a word but no label
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            fillLine();
+            if (position == length) {
+                return false;
+            }
+            int i = skipSpaces(position);
+            if (i == length) {
+                position = length;
+                return false;
+            }
+            if (buffer.get(i) == '\n') {
+                position = i + 1;
+                line++;
+                continue;
+            }
+
+            int wordFrom = i;
+            int wordTo = skipToken(wordFrom);
+            labelFrom = skipSpaces(wordTo);
+            labelTo = skipToken(labelFrom);
+            position = skipLine(labelTo);
+            line++;
+
+            if (labelFrom == labelTo) {
+                throw new IOException("No label on line " + line);
+            }
+            if (matches(wordFrom, wordTo, DOC_START)) {
+                continue;
+            }
+            lowercase(wordFrom, wordTo);
+            return true;
+        }
+    }
+
+    private boolean matches(int from, int to, byte[] bytes) {
+        if (to - from != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (buffer.get(from + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(int from, int to, String ascii) {
+        if (to - from != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (buffer.get(from + i) != ascii.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the word in the buffer of the current word, ASCII letters lowercased
+     */
+    private void lowercase(int from, int to) {
+        wordLength = to - from;
+        if (wordLength > word.length) {
+            word = new byte[Math.max(wordLength, 2 * word.length)];
+        }
+        ascii = true;
+        for (int i = 0; i < wordLength; i++) {
+            byte b = buffer.get(from + i);
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            } else if (b < 0) {
+                ascii = false;
+            }
+            word[i] = b;
+        }
+    }
+
+    /**
+     * @return whether the current token ends a sentence
+     */
+    public boolean isPeriod() {
+        return wordLength == 1 && word[0] == '.';
+    }
+
+    /**
+     * @return current word, lowercased
+     */
+    public String word() {
+        if (ascii) {
+            return new String(word, 0, wordLength, ASCII);
+        }
+        // ASCII bytes never occur in a multi-byte character, the rest is lowercased after decoding
+        return new String(word, 0, wordLength, Charset.defaultCharset()).toLowerCase();
+    }
+
+    /**
+     * @return current label
+     */
+    public String label() {
+        for (String label : seenLabels) {
+            if (matches(labelFrom, labelTo, label)) {
+                return label;
+            }
+        }
+        byte[] bytes = new byte[labelTo - labelFrom];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(labelFrom + i);
+        }
+        String label = new String(bytes, Charset.defaultCharset());
+        seenLabels.add(label);
+        return label;
+    }
+
+    /**
+     * @param vocab
+     * @return index of the current word, index of UNK_TOKEN if it is not in the vocabulary
+     */
+    public int wordIndex(Vocabulary vocab) {
+        return ascii ? vocab.indexOrUnknown(word, wordLength) : vocab.indexOrUnknown(word());
+    }
+
+    /**
+     * @param labelList
+     * @return index of the current label in labelList
+     * @throws IllegalArgumentException if it is not in the list
+     */
+    public int labelIndex(List<String> labelList) {
+        for (int k = 0; k < labelList.size(); k++) {
+            if (matches(labelFrom, labelTo, labelList.get(k))) {
+                return k;
+            }
+        }
+        throw new IllegalArgumentException("Unknown label " + label() + " for word " + word() + " on line " + line);
+    }
+
+    /**
+     * Reads a whole file in a single pass, gives the same Corpus as encoding the data of FeatureFactory.read.
+     * The file is mapped, it must be smaller than 2 GB.
+     * @param filename
+     * @param vocab
+     * @param labelList
+     * @param windowSize
+     * @param keepText: keep the original words
+     * @return
+     * @throws IOException
+     */
+    public static Corpus readCorpus(String filename, Vocabulary vocab, List<String> labelList, int windowSize,
+                                    boolean keepText) throws IOException {
+        CorpusReader in = new CorpusReader(MatrixReader.readFile(filename));
+        Encoder encoder = new Encoder(vocab, labelList, windowSize, keepText, in.length / 8);
+        encoder.start();
+        while (in.next()) {
+            if (in.isPeriod()) {
+                encoder.end();
+                encoder.start();
+            } else {
+                encoder.add(in);
+            }
+        }
+        encoder.end();
+        return encoder.toCorpus();
+    }
+
+    /**
+     * Reads a file one sentence at a time, only the current sentence and the buffer of the reader are held in memory.
+     * The file is closed once the last sentence is read, the iterator is Closeable to close it before.
+     * Each sentence is a Corpus with its own padding, so that its windows are the same as in readCorpus.
+     * @param filename
+     * @param vocab
+     * @param labelList
+     * @param windowSize
+     * @param keepText: keep the original words
+     * @return
+     * @throws IOException
+     */
+    public static Iterator<Corpus> sentences(String filename, Vocabulary vocab, List<String> labelList,
+                                             int windowSize, boolean keepText) throws IOException {
+        return new Sentences(new CorpusReader(filename), new Encoder(vocab, labelList, windowSize, keepText, 64));
+    }
+
+    /**
+     * Iterator of the sentences of a reader
+     */
+    private static class Sentences implements Iterator<Corpus>, Closeable {
+        final CorpusReader in;
+        final Encoder encoder;
+        // The file always has a last sentence, even empty, as in FeatureFactory.read
+        boolean hasNext = true;
+
+        Sentences(CorpusReader in, Encoder encoder) {
+            this.in = in;
+            this.encoder = encoder;
+        }
+
+        public boolean hasNext() {
+            return hasNext;
+        }
+
+        public Corpus next() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+            encoder.clear();
+            encoder.start();
+            try {
+                hasNext = false;
+                while (in.next()) {
+                    if (in.isPeriod()) {
+                        hasNext = true;
+                        break;
+                    }
+                    encoder.add(in);
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+            encoder.end();
+            return encoder.toCorpus();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Growable arrays in which sentences are encoded, with the same padding and windows as Corpus
+     */
+    private static class Encoder {
+        final Vocabulary vocab;
+        final List<String> labelList;
+        final int windowSize, half;
+        final int startIndex, endIndex, padLabel;
+
+        int[] words, labels, windows;
+        String[] text;
+        int size, numWindows, sentenceStart;
+
+        Encoder(Vocabulary vocab, List<String> labelList, int windowSize, boolean keepText, int capacity) {
+            this.vocab = vocab;
+            this.labelList = labelList;
+            this.windowSize = windowSize;
+            this.half = windowSize / 2;
+            startIndex = vocab.indexOrUnknown(FeatureFactory.START_TOKEN);
+            endIndex = vocab.indexOrUnknown(FeatureFactory.END_TOKEN);
+            padLabel = labelList.indexOf("O");
+            if (padLabel < 0) {
+                throw new IllegalArgumentException("Unknown label O for the sentence boundaries");
+            }
+
+            capacity = Math.max(capacity, 16);
+            words = new int[capacity];
+            labels = new int[capacity];
+            windows = new int[capacity];
+            text = keepText ? new String[capacity] : null;
+        }
+
+        void clear() {
+            size = 0;
+            numWindows = 0;
+        }
+
+        private void append(int word, int label, String original) {
+            if (size == words.length) {
+                words = Arrays.copyOf(words, 2 * size);
+                labels = Arrays.copyOf(labels, 2 * size);
+                if (text != null) {
+                    text = Arrays.copyOf(text, 2 * size);
+                }
+            }
+            words[size] = word;
+            labels[size] = label;
+            if (text != null) {
+                text[size] = original;
+            }
+            size++;
+        }
+
+        void start() {
+            sentenceStart = size;
+            for (int i = 0; i < half; i++) {
+                append(startIndex, padLabel, FeatureFactory.START_TOKEN);
+            }
+        }
+
+        void add(CorpusReader in) {
+            append(in.wordIndex(vocab), in.labelIndex(labelList), text != null ? in.word() : null);
+        }
+
+        void end() {
+            for (int i = 0; i < half; i++) {
+                append(endIndex, padLabel, FeatureFactory.END_TOKEN);
+            }
+            // Every word but the last one gets a window, the first window starts on the padding
+            int length = size - sentenceStart - 2 * half;
+            for (int i = 0; i < length - 1; i++) {
+                if (numWindows == windows.length) {
+                    windows = Arrays.copyOf(windows, 2 * numWindows);
+                }
+                windows[numWindows++] = sentenceStart + i;
+            }
+        }
+
+        Corpus toCorpus() {
+            return new Corpus(windowSize, Arrays.copyOf(words, size), Arrays.copyOf(labels, size),
+                    Arrays.copyOf(windows, numWindows), text != null ? Arrays.copyOf(text, size) : null);
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package cs224n.deep;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Coordinator of data-parallel training by worker processes (see DistributedWorker), with model averaging.
+ *
+ * The coordinator initializes the model and sends it to the workers, which each train a replica on their shard of
+ * the training windows. After every round of syncExamples windows per worker, the coordinator receives the deltas of
+ * the replicas since the last synchronization, averages them and sends the average back, which every process adds to
+ * the weights of the last synchronization: the replicas and the coordinator then hold the same weights again. U and W
+ * are averaged over all the workers, a row of L over the workers which updated it (the others have no information on
+ * it), and only the rows updated by some worker are sent (see DistributedProtocol).
+ *
+ * At the end of every epoch the coordinator evaluates its copy on the holdout set and stops, with the weights of the
+ * best epoch, when the precision decreases, as WindowModel.train does. It then writes the checkpoint and tags the test
+ * set.
+ *
+ * The workers connect to distributedPort. With distributedLaunch=true (the default) the coordinator starts them
+ * itself as local processes with the same configuration, so that the whole training runs on one host.
+ *
+ * USAGE: java -cp classes cs224n.deep.DistributedCoordinator config.properties
+ * (or NER with distributedWorkers > 0)
+ */
+public class DistributedCoordinator {
+
+    private final WindowModel model;
+    private final List<DistributedProtocol.Connection> workers;
+    private final int syncExamples;
+
+    // Sum of the deltas of the rows of L and number of workers which updated them, allocated for a row when it is
+    // first updated
+    private final double[][] rowSums;
+    private final int[] rowCounts;
+
+    public boolean verbose = true;
+
+    /**
+     * @param model: initialized model, trained in place
+     * @param workers: connections of the workers, after their HELLO
+     * @param syncExamples: number of windows trained by every worker between two synchronizations
+     */
+    public DistributedCoordinator(WindowModel model, List<DistributedProtocol.Connection> workers,
+                                  int syncExamples) {
+        this.model = model;
+        this.workers = workers;
+        this.syncExamples = syncExamples;
+        this.rowSums = new double[model.numWords][];
+        this.rowCounts = new int[model.numWords];
+    }
+
+    /**
+     * Reads the HELLO of a worker
+     * @return number of training windows of the worker
+     * @throws IOException if the worker was not started with the same model parameters and vocabulary
+     */
+    static int hello(DistributedProtocol.Connection worker, WindowModel model) throws IOException {
+        worker.expect(DistributedProtocol.HELLO);
+        if (worker.readInt() != DistributedProtocol.MAGIC) {
+            throw new IOException("Not a training worker");
+        }
+        int version = worker.readInt();
+        if (version != DistributedProtocol.VERSION) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+        int windowSize = worker.readInt();
+        int wordSize = worker.readInt();
+        int hiddenSize = worker.readInt();
+        int numWords = worker.readInt();
+        int K = worker.readInt();
+        if (windowSize != model.windowSize || wordSize != model.wordSize || hiddenSize != model.hiddenSize
+                || numWords != model.numWords || K != model.K) {
+            throw new IOException(String.format(
+                    "Worker dimensions (window %d, word %d, hidden %d, words %d, labels %d) do not match the model",
+                    windowSize, wordSize, hiddenSize, numWords, K));
+        }
+        if (worker.readLong() != model.vocab.fingerprint()) {
+            throw new IOException("Worker vocabulary does not match the model vocabulary");
+        }
+        return worker.readInt();
+    }
+
+    /**
+     * Trains the model on the workers, stops when the precision decreases on the holdout set
+     * @param numExamples: number of training windows
+     * @param holdoutExamples
+     * @return holdout precision of the weights kept
+     */
+    public double train(int numExamples, Corpus holdoutExamples) throws IOException {
+        int numWorkers = workers.size();
+        model.scaleForTraining();
+        for (int i = 0; i < numWorkers; i++) {
+            init(workers.get(i), i, numWorkers);
+        }
+
+        Snapshot snapshot = new Snapshot(model);
+        DistributedProtocol.Deltas deltas = new DistributedProtocol.Deltas(
+                model.U.getMatrix().data.length, model.W.getMatrix().data.length, model.wordSize);
+        DistributedProtocol.Deltas received = new DistributedProtocol.Deltas(
+                deltas.U.length, deltas.W.length, model.wordSize);
+
+        // the largest slice sets the number of rounds
+        int sliceSize = (numExamples + numWorkers - 1) / numWorkers;
+        int rounds = (sliceSize + syncExamples - 1) / syncExamples;
+        double precision = 0;
+        for (int epoch = 0; epoch < model.maxEpochs; epoch++) {
+            long startTime = System.currentTimeMillis();
+            double lrU = model.lrU0 / (1. + ((double) epoch / model.tau));
+            double lrW = model.lrW0 / (1. + ((double) epoch / model.tau));
+            double lrL = model.lrL0 / (1. + ((double) epoch / model.tau));
+
+            long trained = 0, workerTime = 0, bytes = 0;
+            for (int round = 0; round < rounds; round++) {
+                for (DistributedProtocol.Connection worker : workers) {
+                    bytes -= worker.bytesSent + worker.bytesReceived;
+                    worker.writeByte(DistributedProtocol.ROUND);
+                    worker.writeInt(epoch);
+                    worker.writeInt(round);
+                    worker.writeDouble(lrU);
+                    worker.writeDouble(lrW);
+                    worker.writeDouble(lrL);
+                    worker.flush();
+                }
+
+                Arrays.fill(deltas.U, 0.);
+                Arrays.fill(deltas.W, 0.);
+                deltas.numRows = 0;
+                long roundTime = 0;
+                for (DistributedProtocol.Connection worker : workers) {
+                    worker.expect(DistributedProtocol.DELTA);
+                    trained += worker.readInt();
+                    roundTime = Math.max(roundTime, worker.readLong());
+                    received.read(worker);
+                    add(received, deltas);
+                }
+                // the slowest worker sets the pace of the round
+                workerTime += roundTime;
+                average(deltas, numWorkers, snapshot.dirty);
+
+                for (DistributedProtocol.Connection worker : workers) {
+                    worker.writeByte(DistributedProtocol.UPDATE);
+                    deltas.write(worker);
+                    worker.flush();
+                    bytes += worker.bytesSent + worker.bytesReceived;
+                }
+
+                if (verbose) {
+                    System.out.print(String.format("\rTraining (%d examples seen in %ds)",
+                            trained, (System.currentTimeMillis() - startTime) / 1000));
+                }
+            }
+            long trainTime = System.currentTimeMillis() - startTime;
+
+            if (verbose) {
+                System.out.print("\rComputing error.");
+            }
+            double newPrecision = model.trainingPrecision(holdoutExamples);
+            long endTime = System.currentTimeMillis();
+            boolean better = newPrecision >= precision;
+            if (better) {
+                snapshot.save(model);
+            } else {
+                snapshot.restore(model);
+            }
+            if (verbose) {
+                System.out.println(String.format(
+                        "\rEpoch %d, delta U %f, delta W %f, delta L %f, holdout set precision %.2f%%, " +
+                                "(iteration time %ds, %.0f examples/s, %d workers training %.0f%% of the time, " +
+                                "%.1f MB exchanged per round).",
+                        epoch, snapshot.deltaU, snapshot.deltaW, snapshot.deltaL, 100 * newPrecision,
+                        (endTime - startTime) / 1000, 1000. * trained / Math.max(trainTime, 1), numWorkers,
+                        100. * workerTime / 1e6 / Math.max(trainTime, 1), bytes / 1e6 / rounds));
+            }
+            if (!better) {
+                if (verbose) {
+                    System.out.println(String.format("Restored the weights of epoch %d (precision %.2f%%).",
+                            epoch - 1, 100 * precision));
+                }
+                break;
+            }
+            precision = newPrecision;
+        }
+
+        for (DistributedProtocol.Connection worker : workers) {
+            worker.writeByte(DistributedProtocol.STOP);
+            worker.flush();
+        }
+        model.scaleForPrediction();
+        return precision;
+    }
+
+    /**
+     * Sends its index and the initial weights to a worker
+     */
+    private void init(DistributedProtocol.Connection worker, int index, int numWorkers) throws IOException {
+        worker.writeByte(DistributedProtocol.INIT);
+        worker.writeInt(index);
+        worker.writeInt(numWorkers);
+        worker.writeLong(model.samplingSeed);
+        double[] U = model.U.getMatrix().data;
+        double[] W = model.W.getMatrix().data;
+        worker.writeDoubles(U, 0, U.length);
+        worker.writeDoubles(W, 0, W.length);
+        double[] row = new double[model.wordSize];
+        for (int word = 0; word < model.numWords; word++) {
+            model.L.copyRow(word, row, 0);
+            worker.writeDoubles(row, 0, row.length);
+        }
+        worker.flush();
+    }
+
+    /**
+     * Adds the deltas of a worker to the sums, the rows of L in rowSums
+     */
+    private void add(DistributedProtocol.Deltas received, DistributedProtocol.Deltas sums) {
+        for (int i = 0; i < sums.U.length; i++) {
+            sums.U[i] += received.U[i];
+        }
+        for (int i = 0; i < sums.W.length; i++) {
+            sums.W[i] += received.W[i];
+        }
+        int wordSize = model.wordSize;
+        for (int r = 0; r < received.numRows; r++) {
+            int word = received.rows[r];
+            double[] sum = rowSums[word];
+            if (sum == null) {
+                sum = new double[wordSize];
+                rowSums[word] = sum;
+            }
+            if (rowCounts[word]++ == 0) {
+                sums.addRow(word);
+            }
+            for (int j = 0; j < wordSize; j++) {
+                sum[j] += received.L[r * wordSize + j];
+            }
+        }
+    }
+
+    /**
+     * Turns the sums into averages rounded to floats, as they are sent, and adds them to the model
+     * @param dirty: flags of the rows of L updated since the last snapshot
+     */
+    private void average(DistributedProtocol.Deltas deltas, int numWorkers, boolean[] dirty) {
+        double[] U = model.U.getMatrix().data;
+        for (int i = 0; i < U.length; i++) {
+            deltas.U[i] = (float) (deltas.U[i] / numWorkers);
+            U[i] += deltas.U[i];
+        }
+        double[] W = model.W.getMatrix().data;
+        for (int i = 0; i < W.length; i++) {
+            deltas.W[i] = (float) (deltas.W[i] / numWorkers);
+            W[i] += deltas.W[i];
+        }
+        int wordSize = model.wordSize;
+        for (int r = 0; r < deltas.numRows; r++) {
+            int word = deltas.rows[r];
+            double[] sum = rowSums[word];
+            for (int j = 0; j < wordSize; j++) {
+                deltas.L[r * wordSize + j] = (float) (sum[j] / rowCounts[word]);
+                sum[j] = 0;
+            }
+            rowCounts[word] = 0;
+            model.L.addRow(word, deltas.L, r * wordSize);
+            dirty[word] = true;
+        }
+    }
+
+    /**
+     * Starts the local worker processes, with the same java, class path and configuration as this process
+     */
+    private static List<Process> launch(String configFile, int numWorkers) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Process> processes = new ArrayList<Process>();
+        for (int i = 0; i < numWorkers; i++) {
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    DistributedWorker.class.getName(), configFile);
+            builder.inheritIO();
+            processes.add(builder.start());
+        }
+        return processes;
+    }
+
+    /**
+     * Distributed training with the properties: initializes the model, waits for distributedWorkers workers (started
+     * locally with distributedLaunch=true), trains, saves the model and tags the test set
+     * @param properties
+     * @param configFile: file of the properties, given to the local workers
+     */
+    public static void run(Properties properties, String configFile) throws IOException {
+        int numWorkers = Integer.valueOf(properties.getProperty("distributedWorkers", "2"));
+        int port = Integer.valueOf(properties.getProperty("distributedPort", "4225"));
+        int syncExamples = Integer.valueOf(properties.getProperty("syncExamples", "10000"));
+        boolean launch = Boolean.valueOf(properties.getProperty("distributedLaunch", "true"));
+
+        System.out.println("-- Initialized --");
+        Vocabulary vocab = FeatureFactory.initializeVocab(properties.getProperty("vocabFile", "data/vocab.txt"));
+        List<String> labels = Arrays.asList("O", "ORG", "PER", "LOC", "MISC");
+        WindowModel model = NER.createModel(properties, vocab, labels);
+        model.printParameters();
+        String loadModel = properties.getProperty("loadModel");
+        if (loadModel != null) {
+            model.loadCheckpoint(loadModel);
+        } else {
+            model.initVocab();
+            model.initWeights();
+        }
+        Corpus holdoutExamples = CorpusReader.readCorpus(properties.getProperty("holdoutFile"), vocab, labels,
+                model.windowSize, false);
+
+        ServerSocket serverSocket = new ServerSocket(port);
+        List<Process> processes = launch ? launch(configFile, numWorkers) : new ArrayList<Process>();
+        List<DistributedProtocol.Connection> workers = new ArrayList<DistributedProtocol.Connection>();
+        try {
+            System.out.println(String.format("-- Waiting for %d workers on port %d --", numWorkers,
+                    serverSocket.getLocalPort()));
+            // the workers read the training set themselves, they must all have the same one
+            int numExamples = -1;
+            while (workers.size() < numWorkers) {
+                DistributedProtocol.Connection worker = new DistributedProtocol.Connection(serverSocket.accept());
+                workers.add(worker);
+                int workerExamples = hello(worker, model);
+                if (numExamples >= 0 && workerExamples != numExamples) {
+                    throw new IOException("Workers with training sets of " + numExamples + " and " + workerExamples
+                            + " windows");
+                }
+                numExamples = workerExamples;
+            }
+
+            System.out.println("-- Training data --");
+            new DistributedCoordinator(model, workers, syncExamples).train(numExamples, holdoutExamples);
+        } finally {
+            for (DistributedProtocol.Connection worker : workers) {
+                worker.close();
+            }
+            serverSocket.close();
+        }
+        for (Process process : processes) {
+            try {
+                process.waitFor();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        model.dumpCheckpoint(properties.getProperty("saveModel", "data/saved-model.bin"));
+
+        System.out.println("-- Test data --");
+        model.test(properties.getProperty("testFile"), "test_prediction.out");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("USAGE: java -cp classes cs224n.deep.DistributedCoordinator config.properties");
+            return;
+        }
+
+        InputStream inputStream = new FileInputStream(args[0]);
+        Properties properties = new Properties();
+        properties.load(inputStream);
+        Utils.fastMath = Boolean.valueOf(properties.getProperty("fastMath", "false"));
+        run(properties, args[0]);
+    }
+}
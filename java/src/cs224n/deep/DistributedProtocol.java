@@ -0,0 +1,228 @@
+package cs224n.deep;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary protocol of distributed training, over one TCP connection between the coordinator and each worker.
+ *
+ * A message starts with its type (one byte), the values are big-endian. The weights and their deltas are sent as
+ * floats, except in INIT which carries the initial weights in double precision.
+ *
+ * worker to coordinator:
+ * - HELLO: magic, version, windowSize, wordSize, hiddenSize, number of words, number of labels (ints), fingerprint
+ *   of the vocabulary (long), number of training windows (int)
+ * - DELTA: number of windows trained (int), training time in nanoseconds (long), deltas of U and W (floats), number of
+ *   rows (int) then for each row of L updated its word (int) and the delta of its vector (wordSize floats)
+ *
+ * coordinator to worker:
+ * - INIT: index of the worker, number of workers (ints), sampling seed (long), U, W and L (doubles)
+ * - ROUND: epoch, round (ints), learning rates of U, W and L (doubles)
+ * - UPDATE: averaged deltas, laid out as DELTA without its first two fields
+ * - STOP
+ */
+public class DistributedProtocol {
+
+    public static final int MAGIC = 0x4E455244; // "NERD"
+    public static final int VERSION = 1;
+
+    static final byte HELLO = 1, DELTA = 2, INIT = 3, ROUND = 4, UPDATE = 5, STOP = 6;
+
+    private static final int CHUNK = 1 << 16;
+
+    /**
+     * Buffered streams of a socket, with bulk writes and reads of arrays and counts of the bytes exchanged
+     */
+    static class Connection implements Closeable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        // Conversions of the arrays
+        private final byte[] chunk = new byte[CHUNK];
+        private final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+
+        long bytesSent, bytesReceived;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), CHUNK));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), CHUNK));
+        }
+
+        void writeByte(int value) throws IOException {
+            out.writeByte(value);
+            bytesSent += 1;
+        }
+
+        void writeInt(int value) throws IOException {
+            out.writeInt(value);
+            bytesSent += 4;
+        }
+
+        void writeLong(long value) throws IOException {
+            out.writeLong(value);
+            bytesSent += 8;
+        }
+
+        void writeDouble(double value) throws IOException {
+            out.writeDouble(value);
+            bytesSent += 8;
+        }
+
+        /**
+         * Writes the values from offset (included) to offset + length (excluded) as floats
+         */
+        void writeFloats(double[] values, int offset, int length) throws IOException {
+            for (int start = 0; start < length; start += CHUNK / 4) {
+                int n = Math.min(CHUNK / 4, length - start);
+                buffer.clear();
+                for (int i = 0; i < n; i++) {
+                    buffer.putFloat((float) values[offset + start + i]);
+                }
+                out.write(chunk, 0, 4 * n);
+            }
+            bytesSent += 4L * length;
+        }
+
+        /**
+         * Writes the values from offset (included) to offset + length (excluded) as doubles
+         */
+        void writeDoubles(double[] values, int offset, int length) throws IOException {
+            for (int start = 0; start < length; start += CHUNK / 8) {
+                int n = Math.min(CHUNK / 8, length - start);
+                buffer.clear();
+                for (int i = 0; i < n; i++) {
+                    buffer.putDouble(values[offset + start + i]);
+                }
+                out.write(chunk, 0, 8 * n);
+            }
+            bytesSent += 8L * length;
+        }
+
+        void flush() throws IOException {
+            out.flush();
+        }
+
+        byte readByte() throws IOException {
+            bytesReceived += 1;
+            return in.readByte();
+        }
+
+        int readInt() throws IOException {
+            bytesReceived += 4;
+            return in.readInt();
+        }
+
+        long readLong() throws IOException {
+            bytesReceived += 8;
+            return in.readLong();
+        }
+
+        double readDouble() throws IOException {
+            bytesReceived += 8;
+            return in.readDouble();
+        }
+
+        /**
+         * Reads length floats in dst from offset
+         */
+        void readFloats(double[] dst, int offset, int length) throws IOException {
+            for (int start = 0; start < length; start += CHUNK / 4) {
+                int n = Math.min(CHUNK / 4, length - start);
+                in.readFully(chunk, 0, 4 * n);
+                for (int i = 0; i < n; i++) {
+                    dst[offset + start + i] = buffer.getFloat(4 * i);
+                }
+            }
+            bytesReceived += 4L * length;
+        }
+
+        /**
+         * Reads length doubles in dst from offset
+         */
+        void readDoubles(double[] dst, int offset, int length) throws IOException {
+            for (int start = 0; start < length; start += CHUNK / 8) {
+                int n = Math.min(CHUNK / 8, length - start);
+                in.readFully(chunk, 0, 8 * n);
+                for (int i = 0; i < n; i++) {
+                    dst[offset + start + i] = buffer.getDouble(8 * i);
+                }
+            }
+            bytesReceived += 8L * length;
+        }
+
+        /**
+         * Reads the type of the next message
+         * @throws IOException if it is not the expected one
+         */
+        void expect(byte type) throws IOException {
+            byte actual = readByte();
+            if (actual != type) {
+                throw new IOException("Expected message " + type + ", received " + actual);
+            }
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Deltas of U and W and of some rows of L, as carried by DELTA and UPDATE
+     */
+    static class Deltas {
+        final int wordSize;
+        final double[] U, W;
+        // Words of the rows, and their deltas one row after the other
+        int numRows;
+        int[] rows;
+        double[] L;
+
+        Deltas(int uSize, int wSize, int wordSize) {
+            this.wordSize = wordSize;
+            this.U = new double[uSize];
+            this.W = new double[wSize];
+            this.rows = new int[1024];
+            this.L = new double[1024 * wordSize];
+        }
+
+        /**
+         * @return offset in L of a new row of the word, the capacity being grown if needed
+         */
+        int addRow(int word) {
+            if (numRows == rows.length) {
+                int[] newRows = new int[2 * rows.length];
+                System.arraycopy(rows, 0, newRows, 0, numRows);
+                rows = newRows;
+                double[] newL = new double[2 * L.length];
+                System.arraycopy(L, 0, newL, 0, numRows * wordSize);
+                L = newL;
+            }
+            rows[numRows] = word;
+            return wordSize * numRows++;
+        }
+
+        void write(Connection connection) throws IOException {
+            connection.writeFloats(U, 0, U.length);
+            connection.writeFloats(W, 0, W.length);
+            connection.writeInt(numRows);
+            for (int r = 0; r < numRows; r++) {
+                connection.writeInt(rows[r]);
+                connection.writeFloats(L, r * wordSize, wordSize);
+            }
+        }
+
+        void read(Connection connection) throws IOException {
+            connection.readFloats(U, 0, U.length);
+            connection.readFloats(W, 0, W.length);
+            int n = connection.readInt();
+            numRows = 0;
+            for (int r = 0; r < n; r++) {
+                int offset = addRow(connection.readInt());
+                connection.readFloats(L, offset, wordSize);
+            }
+        }
+    }
+}
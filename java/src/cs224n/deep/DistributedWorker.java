@@ -0,0 +1,253 @@
+package cs224n.deep;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Worker process of distributed training (see DistributedCoordinator): trains a replica of the model on its shard of
+ * the training windows, and after every round sends the deltas of its weights since the last synchronization and
+ * applies the averaged ones.
+ *
+ * Every epoch, the workers draw the same order of all the windows (same sampling and seed) and worker i of n trains on
+ * its i-th slice, syncExamples windows per round. The weights of the last synchronization are kept, so that the deltas
+ * of L are only computed and sent for the rows updated during the round.
+ *
+ * USAGE: java -cp classes cs224n.deep.DistributedWorker config.properties
+ * with distributedHost, distributedPort, syncExamples, trainFile, vocabFile and the model parameters in the properties,
+ * which must be the ones of the coordinator.
+ */
+public class DistributedWorker {
+
+    // Attempts to connect while the coordinator is starting, one every 100ms
+    private static final int CONNECT_ATTEMPTS = 100;
+
+    private final WindowModel model;
+    private final Corpus examples;
+    private final DistributedProtocol.Connection connection;
+    private final int syncExamples;
+
+    // Weights as of the last synchronization
+    private DenseMatrix64F baseU, baseW;
+    private Embeddings baseL;
+    // Rows of L updated during the round
+    private final boolean[] dirty;
+
+    private int index, numWorkers;
+    private EpochScheduler scheduler;
+    private int epoch = -1;
+    private int[] order;
+
+    /**
+     * @param model: parameters of the model, its weights are received from the coordinator
+     * @param examples: all the training windows
+     * @param connection
+     * @param syncExamples: number of windows trained between two synchronizations
+     */
+    public DistributedWorker(WindowModel model, Corpus examples, DistributedProtocol.Connection connection,
+                             int syncExamples) {
+        this.model = model;
+        this.examples = examples;
+        this.connection = connection;
+        this.syncExamples = syncExamples;
+        this.dirty = new boolean[model.numWords];
+    }
+
+    /**
+     * Handshake, then trains the rounds sent by the coordinator until it stops
+     * @throws IOException
+     */
+    public void run() throws IOException {
+        hello();
+        init();
+        DistributedProtocol.Deltas deltas = new DistributedProtocol.Deltas(
+                baseU.data.length, baseW.data.length, model.wordSize);
+        while (true) {
+            byte type = connection.readByte();
+            if (type == DistributedProtocol.STOP) {
+                return;
+            }
+            if (type != DistributedProtocol.ROUND) {
+                throw new IOException("Unexpected message " + type);
+            }
+            int roundEpoch = connection.readInt();
+            int round = connection.readInt();
+            double lrU = connection.readDouble();
+            double lrW = connection.readDouble();
+            double lrL = connection.readDouble();
+
+            long startTime = System.nanoTime();
+            // the slices of all the workers partition the same order
+            while (epoch < roundEpoch) {
+                order = scheduler.next();
+                epoch++;
+            }
+            int sliceFrom = (int) ((long) index * examples.size() / numWorkers);
+            int sliceTo = (int) ((long) (index + 1) * examples.size() / numWorkers);
+            int from = Math.min(sliceFrom + round * syncExamples, sliceTo);
+            int to = Math.min(from + syncExamples, sliceTo);
+            if (from < to) {
+                model.trainSteps(examples, order, from, to, lrU, lrW, lrL, dirty);
+            }
+            long trainTime = System.nanoTime() - startTime;
+
+            computeDeltas(deltas);
+            connection.writeByte(DistributedProtocol.DELTA);
+            connection.writeInt(to - from);
+            connection.writeLong(trainTime);
+            deltas.write(connection);
+            connection.flush();
+
+            connection.expect(DistributedProtocol.UPDATE);
+            deltas.read(connection);
+            applyUpdate(deltas);
+        }
+    }
+
+    private void hello() throws IOException {
+        connection.writeByte(DistributedProtocol.HELLO);
+        connection.writeInt(DistributedProtocol.MAGIC);
+        connection.writeInt(DistributedProtocol.VERSION);
+        connection.writeInt(model.windowSize);
+        connection.writeInt(model.wordSize);
+        connection.writeInt(model.hiddenSize);
+        connection.writeInt(model.numWords);
+        connection.writeInt(model.K);
+        connection.writeLong(model.vocab.fingerprint());
+        connection.writeInt(examples.size());
+        connection.flush();
+    }
+
+    /**
+     * Receives the index of the worker and the initial weights
+     */
+    private void init() throws IOException {
+        connection.expect(DistributedProtocol.INIT);
+        index = connection.readInt();
+        numWorkers = connection.readInt();
+        model.samplingSeed = connection.readLong();
+
+        DenseMatrix64F U = new DenseMatrix64F(model.K, model.hiddenSize + 1);
+        DenseMatrix64F W = new DenseMatrix64F(model.hiddenSize, model.windowSize * model.wordSize + 1);
+        DenseMatrix64F L = new DenseMatrix64F(model.numWords, model.wordSize);
+        connection.readDoubles(U.data, 0, U.data.length);
+        connection.readDoubles(W.data, 0, W.data.length);
+        connection.readDoubles(L.data, 0, L.data.length);
+        model.loadWeightsU(SimpleMatrix.wrap(U));
+        model.loadWeightsW(SimpleMatrix.wrap(W));
+        model.loadVocab(SimpleMatrix.wrap(L));
+
+        baseU = U.copy();
+        baseW = W.copy();
+        baseL = model.L.copy();
+        scheduler = new EpochScheduler(examples, model.K, model.sampling, model.samplingSeed);
+    }
+
+    /**
+     * Differences between the weights and the ones of the last synchronization, for the updated rows of L only
+     */
+    private void computeDeltas(DistributedProtocol.Deltas deltas) {
+        subtract(model.U.getMatrix().data, baseU.data, deltas.U);
+        subtract(model.W.getMatrix().data, baseW.data, deltas.W);
+
+        int wordSize = model.wordSize;
+        double[] base = new double[wordSize];
+        deltas.numRows = 0;
+        for (int word = 0; word < dirty.length; word++) {
+            if (dirty[word]) {
+                dirty[word] = false;
+                int offset = deltas.addRow(word);
+                model.L.copyRow(word, deltas.L, offset);
+                baseL.copyRow(word, base, 0);
+                for (int j = 0; j < wordSize; j++) {
+                    deltas.L[offset + j] -= base[j];
+                }
+            }
+        }
+    }
+
+    private static void subtract(double[] a, double[] b, double[] dst) {
+        for (int i = 0; i < dst.length; i++) {
+            dst[i] = a[i] - b[i];
+        }
+    }
+
+    /**
+     * Sets the weights to the ones of the last synchronization plus the averaged deltas, which the coordinator applies
+     * in the same way, so that all the replicas stay equal
+     */
+    private void applyUpdate(DistributedProtocol.Deltas deltas) {
+        double[] U = model.U.getMatrix().data;
+        for (int i = 0; i < U.length; i++) {
+            baseU.data[i] += deltas.U[i];
+            U[i] = baseU.data[i];
+        }
+        double[] W = model.W.getMatrix().data;
+        for (int i = 0; i < W.length; i++) {
+            baseW.data[i] += deltas.W[i];
+            W[i] = baseW.data[i];
+        }
+        for (int r = 0; r < deltas.numRows; r++) {
+            int word = deltas.rows[r];
+            baseL.addRow(word, deltas.L, r * model.wordSize);
+            baseL.copyRowTo(word, model.L);
+        }
+    }
+
+    /**
+     * Connects to the coordinator, retrying while it starts
+     */
+    static Socket connect(String host, int port) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return new Socket(host, port);
+            } catch (ConnectException e) {
+                if (attempt == CONNECT_ATTEMPTS) {
+                    throw e;
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while connecting to the coordinator");
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("USAGE: java -cp classes cs224n.deep.DistributedWorker config.properties");
+            return;
+        }
+
+        InputStream inputStream = new FileInputStream(args[0]);
+        Properties properties = new Properties();
+        properties.load(inputStream);
+        Utils.fastMath = Boolean.valueOf(properties.getProperty("fastMath", "false"));
+
+        Vocabulary vocab = FeatureFactory.initializeVocab(properties.getProperty("vocabFile", "data/vocab.txt"));
+        List<String> labels = Arrays.asList("O", "ORG", "PER", "LOC", "MISC");
+        WindowModel model = NER.createModel(properties, vocab, labels);
+        Corpus examples = CorpusReader.readCorpus(properties.getProperty("trainFile"), vocab, labels,
+                model.windowSize, false);
+
+        String host = properties.getProperty("distributedHost", "localhost");
+        int port = Integer.valueOf(properties.getProperty("distributedPort", "4225"));
+        int syncExamples = Integer.valueOf(properties.getProperty("syncExamples", "10000"));
+        DistributedProtocol.Connection connection = new DistributedProtocol.Connection(connect(host, port));
+        try {
+            new DistributedWorker(model, examples, connection, syncExamples).run();
+        } finally {
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package cs224n.deep;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+import java.util.Arrays;
+
+/**
+ * The word vectors L, one row of wordSize values per word of the vocabulary, stored in double precision or in single
+ * precision (float32 mode, half the memory and bandwidth). Rows are read and updated in double precision.
+ */
+public abstract class Embeddings {
+
+    public final int numWords, wordSize;
+
+    protected Embeddings(int numWords, int wordSize) {
+        this.numWords = numWords;
+        this.wordSize = wordSize;
+    }
+
+    /**
+     * @param matrix: one row per word
+     * @param float32: store in single precision (the values are copied) or wrap the matrix
+     */
+    public static Embeddings of(SimpleMatrix matrix, boolean float32) {
+        DenseMatrix64F m = matrix.getMatrix();
+        if (!float32) {
+            return new Doubles(m);
+        }
+        float[] data = new float[m.numRows * m.numCols];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (float) m.data[i];
+        }
+        return new Floats(m.numRows, m.numCols, data);
+    }
+
+    /**
+     * Copies the vector of a word
+     * @param word
+     * @param dst
+     * @param offset: position of the first value in dst
+     */
+    public abstract void copyRow(int word, double[] dst, int offset);
+
+    /**
+     * Adds scale * values to the vector of a word, only where mask is not zero
+     * @param word
+     * @param scale
+     * @param values
+     * @param mask: same layout as values
+     * @param offset: position of the first value in values and mask
+     */
+    public abstract void addMasked(int word, double scale, double[] values, double[] mask, int offset);
+
+    /**
+     * Adds values to the vector of a word
+     * @param word
+     * @param values
+     * @param offset: position of the first value in values
+     */
+    public abstract void addRow(int word, double[] values, int offset);
+
+    /**
+     * Copies the vector of a word in embeddings of the same shape and precision
+     * @param word
+     * @param dst
+     * @return squared distance between the two vectors before the copy
+     */
+    public abstract double copyRowTo(int word, Embeddings dst);
+
+    public abstract Embeddings copy();
+
+    /**
+     * @return a double precision copy (the matrix itself in double precision)
+     */
+    public abstract SimpleMatrix toMatrix();
+
+    public boolean isFloat32() {
+        return this instanceof Floats;
+    }
+
+    /**
+     * Double precision, wraps a DenseMatrix64F
+     */
+    public static final class Doubles extends Embeddings {
+        final DenseMatrix64F matrix;
+        final double[] data;
+
+        public Doubles(DenseMatrix64F matrix) {
+            super(matrix.numRows, matrix.numCols);
+            this.matrix = matrix;
+            this.data = matrix.data;
+        }
+
+        public void copyRow(int word, double[] dst, int offset) {
+            System.arraycopy(data, word * wordSize, dst, offset, wordSize);
+        }
+
+        public void addMasked(int word, double scale, double[] values, double[] mask, int offset) {
+            int row = word * wordSize;
+            for (int j = 0; j < wordSize; j++) {
+                if (mask[offset + j] != 0) {
+                    data[row + j] += scale * values[offset + j];
+                }
+            }
+        }
+
+        public void addRow(int word, double[] values, int offset) {
+            int row = word * wordSize;
+            for (int j = 0; j < wordSize; j++) {
+                data[row + j] += values[offset + j];
+            }
+        }
+
+        public double copyRowTo(int word, Embeddings dst) {
+            double[] dstData = ((Doubles) dst).data;
+            double sum = 0;
+            for (int j = word * wordSize; j < (word + 1) * wordSize; j++) {
+                double d = data[j] - dstData[j];
+                sum += d * d;
+                dstData[j] = data[j];
+            }
+            return sum;
+        }
+
+        public Embeddings copy() {
+            return new Doubles(matrix.copy());
+        }
+
+        public SimpleMatrix toMatrix() {
+            return SimpleMatrix.wrap(matrix);
+        }
+    }
+
+    /**
+     * Single precision
+     */
+    public static final class Floats extends Embeddings {
+        final float[] data;
+
+        public Floats(int numWords, int wordSize, float[] data) {
+            super(numWords, wordSize);
+            if (data.length != numWords * wordSize) {
+                throw new IllegalArgumentException("Expected " + numWords * wordSize + " values");
+            }
+            this.data = data;
+        }
+
+        public void copyRow(int word, double[] dst, int offset) {
+            int row = word * wordSize;
+            for (int j = 0; j < wordSize; j++) {
+                dst[offset + j] = data[row + j];
+            }
+        }
+
+        public void addMasked(int word, double scale, double[] values, double[] mask, int offset) {
+            int row = word * wordSize;
+            for (int j = 0; j < wordSize; j++) {
+                if (mask[offset + j] != 0) {
+                    data[row + j] += (float) (scale * values[offset + j]);
+                }
+            }
+        }
+
+        public void addRow(int word, double[] values, int offset) {
+            int row = word * wordSize;
+            for (int j = 0; j < wordSize; j++) {
+                data[row + j] += (float) values[offset + j];
+            }
+        }
+
+        public double copyRowTo(int word, Embeddings dst) {
+            float[] dstData = ((Floats) dst).data;
+            double sum = 0;
+            for (int j = word * wordSize; j < (word + 1) * wordSize; j++) {
+                double d = data[j] - dstData[j];
+                sum += d * d;
+                dstData[j] = data[j];
+            }
+            return sum;
+        }
+
+        public Embeddings copy() {
+            return new Floats(numWords, wordSize, Arrays.copyOf(data, data.length));
+        }
+
+        public SimpleMatrix toMatrix() {
+            DenseMatrix64F matrix = new DenseMatrix64F(numWords, wordSize);
+            for (int i = 0; i < data.length; i++) {
+                matrix.data[i] = data[i];
+            }
+            return SimpleMatrix.wrap(matrix);
+        }
+    }
+}
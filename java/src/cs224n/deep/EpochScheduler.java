@@ -0,0 +1,117 @@
+package cs224n.deep;
+
+import java.util.Random;
+
+/**
+ * Order in which the training windows are visited, as a permutation of their indices in the corpus that is shuffled
+ * in place at the start of every epoch: the corpus itself is never copied or reordered.
+ *
+ * - none: the corpus order, every epoch,
+ * - uniform: a new uniformly random permutation every epoch,
+ * - stratified: the windows of each label (the label of their middle word) are shuffled in their own bucket, then the
+ *   buckets are interleaved in proportion to their sizes, each one starting at a random phase, so that any stretch of
+ *   the epoch (a mini-batch or a Hogwild shard) holds the labels in the proportions of the corpus.
+ *
+ * The permutations only depend on the seed, so that runs can be reproduced.
+ */
+public class EpochScheduler {
+
+    public static final String NONE = "none", UNIFORM = "uniform", STRATIFIED = "stratified";
+
+    private final String mode;
+    private final Random rand;
+
+    // Permutation of the windows of the current epoch
+    private final int[] order;
+    // Windows of each label, for stratified sampling
+    private final int[][] buckets;
+
+    /**
+     * @param examples
+     * @param K: number of labels
+     * @param mode: none, uniform or stratified
+     * @param seed
+     */
+    public EpochScheduler(Corpus examples, int K, String mode, long seed) {
+        if (!mode.equals(NONE) && !mode.equals(UNIFORM) && !mode.equals(STRATIFIED)) {
+            throw new IllegalArgumentException("Unknown sampling " + mode + ", none, uniform or stratified");
+        }
+        this.mode = mode;
+        this.rand = new Random(seed);
+        int n = examples.size();
+        order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+
+        if (mode.equals(STRATIFIED)) {
+            int[] counts = new int[K];
+            for (int i = 0; i < n; i++) {
+                counts[examples.labels[examples.center(i)]]++;
+            }
+            buckets = new int[K][];
+            for (int k = 0; k < K; k++) {
+                buckets[k] = new int[counts[k]];
+                counts[k] = 0;
+            }
+            for (int i = 0; i < n; i++) {
+                int label = examples.labels[examples.center(i)];
+                buckets[label][counts[label]++] = i;
+            }
+        } else {
+            buckets = null;
+        }
+    }
+
+    /**
+     * @return order of the windows for the next epoch, the same array every epoch, only valid until the next call
+     */
+    public int[] next() {
+        if (mode.equals(UNIFORM)) {
+            shuffle(order, rand);
+        } else if (mode.equals(STRATIFIED)) {
+            interleave();
+        }
+        return order;
+    }
+
+    /**
+     * Fisher-Yates shuffle in place
+     */
+    private static void shuffle(int[] values, Random rand) {
+        for (int i = values.length - 1; i > 0; i--) {
+            int j = rand.nextInt(i + 1);
+            int swap = values[i];
+            values[i] = values[j];
+            values[j] = swap;
+        }
+    }
+
+    /**
+     * Shuffles the buckets and merges them in order: the i-th window of a bucket of size n_k comes at the fraction
+     * (i + phase_k) / n_k of the epoch
+     */
+    private void interleave() {
+        int K = buckets.length;
+        double[] phase = new double[K];
+        int[] taken = new int[K];
+        for (int k = 0; k < K; k++) {
+            shuffle(buckets[k], rand);
+            phase[k] = rand.nextDouble();
+        }
+        for (int i = 0; i < order.length; i++) {
+            int best = -1;
+            double bestPosition = Double.POSITIVE_INFINITY;
+            for (int k = 0; k < K; k++) {
+                if (taken[k] < buckets[k].length) {
+                    double position = (taken[k] + phase[k]) / buckets[k].length;
+                    if (position < bestPosition) {
+                        bestPosition = position;
+                        best = k;
+                    }
+                }
+            }
+            order[i] = buckets[best][taken[best]++];
+        }
+    }
+}
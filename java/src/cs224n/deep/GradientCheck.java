@@ -0,0 +1,278 @@
+package cs224n.deep;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Gradient checks of the forward and backward pass of Workspace, the ones used for training: the gradients of the
+ * cross-entropy of a window with respect to U, W and the input X are compared, one coordinate at a time, to the
+ * central differences (loss(v + epsilon) - loss(v - epsilon)) / (2 epsilon).
+ *
+ * A trial draws a random window (input in [0, 1) and label) and has its own copies of the weights and its own
+ * workspace: a coordinate is perturbed in place and restored after its two forward passes, nothing is allocated per
+ * coordinate. The coordinates of a large matrix can be sampled at random. The trials, and the coordinates of a trial
+ * split in blocks when there are fewer trials than threads, run in parallel on a fixed pool.
+ *
+ * USAGE: java -cp classes cs224n.deep.GradientCheck [trials] [samples] [tolerance]
+ * checks a randomly initialized model and exits with status 1 if a relative error is above the tolerance.
+ */
+public class GradientCheck {
+
+    // Parameters
+    private static final int GRAD_U = 0, GRAD_W = 1, GRAD_X = 2;
+    private static final String[] NAMES = {"U", "W", "X"};
+
+    // Gradients smaller than this are compared in absolute error
+    private static final double MIN_MAGNITUDE = 1e-8;
+
+    /**
+     * Errors over the checked coordinates
+     */
+    public static class Result {
+        public final String parameter;
+        public int checked;
+        public double maxAbsoluteError, maxRelativeError;
+        private double sumRelativeError;
+
+        Result(String parameter) {
+            this.parameter = parameter;
+        }
+
+        public double meanRelativeError() {
+            return checked > 0 ? sumRelativeError / checked : 0;
+        }
+
+        void add(double analytic, double numeric) {
+            double error = Math.abs(analytic - numeric);
+            double relative = error / Math.max(Math.max(Math.abs(analytic), Math.abs(numeric)), MIN_MAGNITUDE);
+            checked++;
+            maxAbsoluteError = Math.max(maxAbsoluteError, error);
+            maxRelativeError = Math.max(maxRelativeError, relative);
+            sumRelativeError += relative;
+        }
+
+        void addAll(Result other) {
+            checked += other.checked;
+            maxAbsoluteError = Math.max(maxAbsoluteError, other.maxAbsoluteError);
+            maxRelativeError = Math.max(maxRelativeError, other.maxRelativeError);
+            sumRelativeError += other.sumRelativeError;
+        }
+
+        public String toString() {
+            return String.format("%s gradient: %d coordinates, relative error max %.2e mean %.2e, absolute error max %.2e",
+                    parameter, checked, maxRelativeError, meanRelativeError(), maxAbsoluteError);
+        }
+    }
+
+    private final int windowSize, wordSize, hiddenSize, K;
+    // Actual weights, the lazy decay applied
+    private final DenseMatrix64F Uweights, Wweights;
+    private final int numThreads;
+    public double epsilon = 1e-5;
+    public long seed = 0;
+
+    /**
+     * @param model: initialized model, its weights are copied and never modified
+     * @param numThreads
+     */
+    public GradientCheck(WindowModel model, int numThreads) {
+        this.windowSize = model.windowSize;
+        this.wordSize = model.wordSize;
+        this.hiddenSize = model.hiddenSize;
+        this.K = model.K;
+        this.Uweights = model.U.getMatrix().copy();
+        this.Wweights = model.W.getMatrix().copy();
+        CommonOps.scale(model.uScale, Uweights);
+        CommonOps.scale(model.wScale, Wweights);
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * A random window, the weights it is checked with and their analytic gradients
+     */
+    private class Trial {
+        final DenseMatrix64F U, W;
+        final Workspace ws;
+        final double[] gradU, gradW, gradX;
+
+        Trial(long seed) {
+            Random rand = new Random(seed);
+            U = Uweights.copy();
+            W = Wweights.copy();
+            ws = new Workspace(windowSize, wordSize, hiddenSize, K);
+            int inputSize = ws.X.numCols;
+            for (int j = 0; j < inputSize - 1; j++) {
+                ws.X.data[j] = rand.nextDouble();
+            }
+            ws.X.data[inputSize - 1] = 1.0;
+            ws.label[0] = rand.nextInt(K);
+
+            // E = y - p is the gradient of the log-likelihood, minus the one of the cross-entropy
+            ws.forward(U, 1., W, 1., false);
+            ws.backward(U, 1., W, 1.);
+            gradU = new double[U.data.length];
+            for (int k = 0; k < K; k++) {
+                for (int i = 0; i <= hiddenSize; i++) {
+                    gradU[k * (hiddenSize + 1) + i] = -ws.E.data[k] * ws.H.data[i];
+                }
+            }
+            gradW = new double[W.data.length];
+            for (int i = 0; i < hiddenSize; i++) {
+                for (int j = 0; j < inputSize; j++) {
+                    gradW[i * inputSize + j] = -ws.Delta.data[i] * ws.X.data[j];
+                }
+            }
+            // without the bias
+            gradX = new double[inputSize - 1];
+            for (int j = 0; j < inputSize - 1; j++) {
+                gradX[j] = -ws.Xgrad.data[j];
+            }
+        }
+
+        double loss() {
+            ws.forward(U, 1., W, 1., false);
+            return ws.loss(0);
+        }
+
+        double[] values(int parameter) {
+            return parameter == GRAD_U ? U.data : parameter == GRAD_W ? W.data : ws.X.data;
+        }
+
+        double[] gradient(int parameter) {
+            return parameter == GRAD_U ? gradU : parameter == GRAD_W ? gradW : gradX;
+        }
+    }
+
+    public Result checkU(int trials, int samples) {
+        return check(GRAD_U, trials, samples);
+    }
+
+    public Result checkW(int trials, int samples) {
+        return check(GRAD_W, trials, samples);
+    }
+
+    public Result checkX(int trials, int samples) {
+        return check(GRAD_X, trials, samples);
+    }
+
+    /**
+     * @param parameter
+     * @param trials: number of random windows
+     * @param samples: number of coordinates checked per trial, all of them if 0 or more than the size
+     * @return errors over all the trials
+     */
+    private Result check(final int parameter, int trials, int samples) {
+        int size = parameter == GRAD_U ? Uweights.data.length : parameter == GRAD_W ? Wweights.data.length
+                : windowSize * wordSize;
+        final int count = samples > 0 ? Math.min(samples, size) : size;
+        int blocks = Math.max(1, (numThreads + trials - 1) / trials);
+
+        Random rand = new Random(seed);
+        List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+        for (int t = 0; t < trials; t++) {
+            final long trialSeed = rand.nextLong();
+            for (int b = 0; b < blocks; b++) {
+                final int from = (int) ((long) b * count / blocks);
+                final int to = (int) ((long) (b + 1) * count / blocks);
+                tasks.add(new Callable<Result>() {
+                    public Result call() {
+                        return checkCoordinates(parameter, trialSeed, count, from, to);
+                    }
+                });
+            }
+        }
+
+        Result result = new Result(NAMES[parameter]);
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (Future<Result> future : pool.invokeAll(tasks)) {
+                result.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Gradient check interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Gradient check worker failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Checks the coordinates from (included) to (excluded) of the count ones drawn for the trial
+     */
+    private Result checkCoordinates(int parameter, long trialSeed, int count, int from, int to) {
+        Trial trial = new Trial(trialSeed);
+        double[] values = trial.values(parameter);
+        double[] gradient = trial.gradient(parameter);
+        int[] coordinates = sample(gradient.length, count, new Random(~trialSeed));
+
+        Result result = new Result(NAMES[parameter]);
+        for (int c = from; c < to; c++) {
+            int i = coordinates[c];
+            double saved = values[i];
+            values[i] = saved + epsilon;
+            double plus = trial.loss();
+            values[i] = saved - epsilon;
+            double minus = trial.loss();
+            values[i] = saved;
+            result.add(gradient[i], (plus - minus) / (2 * epsilon));
+        }
+        return result;
+    }
+
+    /**
+     * @return count distinct indices below size in random order, or all of them in order
+     */
+    private static int[] sample(int size, int count, Random rand) {
+        int[] indices = new int[size];
+        for (int i = 0; i < size; i++) {
+            indices[i] = i;
+        }
+        if (count < size) {
+            // partial Fisher-Yates shuffle
+            for (int i = 0; i < count; i++) {
+                int j = i + rand.nextInt(size - i);
+                int swap = indices[i];
+                indices[i] = indices[j];
+                indices[j] = swap;
+            }
+        }
+        return indices;
+    }
+
+    public static void main(String[] args) {
+        int trials = args.length > 0 ? Integer.valueOf(args[0]) : 10;
+        int samples = args.length > 1 ? Integer.valueOf(args[1]) : 1000;
+        double tolerance = args.length > 2 ? Double.valueOf(args[2]) : 1e-4;
+
+        WindowModel model = new WindowModel(7, 50, 100, 0, 0, 0, 0, 1, 0, 1, 1, new Vocabulary(),
+                Arrays.asList("O", "ORG", "PER", "LOC", "MISC"));
+        model.initWeights();
+        GradientCheck check = new GradientCheck(model, Runtime.getRuntime().availableProcessors());
+
+        boolean failed = false;
+        long start = System.nanoTime();
+        for (Result result : new Result[]{check.checkU(trials, samples), check.checkW(trials, samples),
+                check.checkX(trials, samples)}) {
+            System.out.println(result);
+            failed |= result.maxRelativeError > tolerance;
+        }
+        System.out.println(String.format("%.0f ms", (System.nanoTime() - start) / 1e6));
+        if (failed) {
+            System.out.println(String.format("Gradient check FAILED, relative error above %.0e", tolerance));
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package cs224n.deep;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Exposes the last report as the read-only attributes of an MBean (cs224n.deep:type=Training by default), to be
+ * read with jconsole or any JMX client.
+ */
+public class JmxReporter implements MetricsReporter, DynamicMBean {
+
+    private final ObjectName name;
+    private volatile Map<String, Object> metrics = Collections.emptyMap();
+
+    public JmxReporter() throws JMException {
+        this("cs224n.deep:type=Training");
+    }
+
+    public JmxReporter(String objectName) throws JMException {
+        name = new ObjectName(objectName);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(this, name);
+    }
+
+    public void report(Map<String, Object> metrics) {
+        this.metrics = metrics;
+    }
+
+    public void close() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // already unregistered
+        }
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Map<String, Object> current = metrics;
+        if (!current.containsKey(attribute)) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return current.get(attribute);
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        Map<String, Object> current = metrics;
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            if (current.containsKey(attribute)) {
+                list.add(new Attribute(attribute, current.get(attribute)));
+            }
+        }
+        return list;
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only");
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException {
+        throw new MBeanException(new UnsupportedOperationException(actionName));
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        Map<String, Object> current = metrics;
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[current.size()];
+        int i = 0;
+        for (Map.Entry<String, Object> metric : current.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(metric.getKey(), metric.getValue().getClass().getName(),
+                    metric.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "NER training metrics", attributes, null, null, null);
+    }
+}
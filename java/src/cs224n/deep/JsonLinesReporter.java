@@ -0,0 +1,51 @@
+package cs224n.deep;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Appends every report as one JSON object per line
+ */
+public class JsonLinesReporter implements MetricsReporter {
+
+    private final Writer out;
+
+    public JsonLinesReporter(String filename) throws IOException {
+        out = new FileWriter(filename, true);
+    }
+
+    public synchronized void report(Map<String, Object> metrics) {
+        StringBuilder line = new StringBuilder("{");
+        for (Map.Entry<String, Object> metric : metrics.entrySet()) {
+            if (line.length() > 1) {
+                line.append(',');
+            }
+            line.append('"').append(metric.getKey()).append("\":");
+            Object value = metric.getValue();
+            if (value instanceof Number) {
+                double number = ((Number) value).doubleValue();
+                // JSON has no NaN nor infinity
+                line.append(Double.isNaN(number) || Double.isInfinite(number) ? "null" : value.toString());
+            } else {
+                line.append('"').append(value).append('"');
+            }
+        }
+        line.append("}\n");
+        try {
+            out.write(line.toString());
+            out.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write metrics", e);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            // nothing left to write
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package cs224n.deep;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Fast reader for text matrices such as the word vectors: one row per line, values separated by whitespace (or
+ * commas). The file is read with NIO and split in chunks at line boundaries, the chunks are parsed in parallel
+ * directly from the bytes, without creating a String per value. The dimensions are inferred from the data.
+ */
+public class MatrixReader {
+
+    // Exact powers of ten, a double holds 10^k exactly up to k = 22
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    // Integers up to 2^53 are exact in a double
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private MatrixReader() {
+
+    }
+
+    /**
+     * Reads a matrix using one thread per core
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static SimpleMatrix read(String filename) throws IOException {
+        return read(filename, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param filename
+     * @param numThreads: number of chunks parsed in parallel
+     * @return matrix with one row per non empty line
+     * @throws IOException if the lines do not all have the same number of values
+     */
+    public static SimpleMatrix read(String filename, int numThreads) throws IOException {
+        ByteBuffer buffer = readFile(filename);
+        int length = buffer.limit();
+
+        // Chunk boundaries, moved to the start of the next line
+        int numChunks = Math.max(1, Math.min(numThreads, length / (1 << 16)));
+        int[] bounds = new int[numChunks + 1];
+        for (int c = 1; c < numChunks; c++) {
+            int position = Math.max(bounds[c - 1], (int) ((long) length * c / numChunks));
+            while (position < length && buffer.get(position) != '\n') {
+                position++;
+            }
+            bounds[c] = Math.min(position + 1, length);
+        }
+        bounds[numChunks] = length;
+
+        int numCols = countValues(buffer, firstLine(buffer, length), length);
+        if (numCols == 0) {
+            throw new IOException("No values in " + filename);
+        }
+
+        ExecutorService pool = numChunks > 1 ? Executors.newFixedThreadPool(numChunks) : null;
+        try {
+            // First pass: number of rows of each chunk, to know where each chunk starts in the matrix
+            final int[] rows = new int[numChunks];
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+            for (int c = 0; c < numChunks; c++) {
+                final ByteBuffer view = buffer.duplicate();
+                final int chunk = c;
+                final int from = bounds[c], to = bounds[c + 1];
+                tasks.add(new Callable<Void>() {
+                    public Void call() {
+                        rows[chunk] = countRows(view, from, to);
+                        return null;
+                    }
+                });
+            }
+            run(pool, tasks);
+
+            int numRows = 0;
+            final int[] firstRow = new int[numChunks];
+            for (int c = 0; c < numChunks; c++) {
+                firstRow[c] = numRows;
+                numRows += rows[c];
+            }
+
+            // Second pass: parse each chunk in its rows
+            final DenseMatrix64F matrix = new DenseMatrix64F(numRows, numCols);
+            final int cols = numCols;
+            tasks.clear();
+            for (int c = 0; c < numChunks; c++) {
+                final ByteBuffer view = buffer.duplicate();
+                final int chunk = c;
+                final int from = bounds[c], to = bounds[c + 1];
+                tasks.add(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        parseRows(view, from, to, matrix.data, firstRow[chunk], cols);
+                        return null;
+                    }
+                });
+            }
+            run(pool, tasks);
+
+            return SimpleMatrix.wrap(matrix);
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Maps the file, the mapping stays valid after the channel is closed
+     */
+    static ByteBuffer readFile(String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + filename);
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void run(ExecutorService pool, List<Callable<Void>> tasks) throws IOException {
+        try {
+            if (pool == null) {
+                for (Callable<Void> task : tasks) {
+                    task.call();
+                }
+                return;
+            }
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading matrix");
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t' || b == ',' || b == '\r';
+    }
+
+    private static int firstLine(ByteBuffer buffer, int length) {
+        int position = 0;
+        while (position < length && (isSeparator(buffer.get(position)) || buffer.get(position) == '\n')) {
+            position++;
+        }
+        return position;
+    }
+
+    /**
+     * @return number of values on the line starting at from
+     */
+    private static int countValues(ByteBuffer buffer, int from, int to) {
+        int count = 0;
+        boolean inValue = false;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b == '\n') {
+                break;
+            }
+            if (isSeparator(b)) {
+                inValue = false;
+            } else if (!inValue) {
+                inValue = true;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of non empty lines between from and to
+     */
+    private static int countRows(ByteBuffer buffer, int from, int to) {
+        int rows = 0;
+        boolean empty = true;
+        for (int i = from; i < to; i++) {
+            byte b = buffer.get(i);
+            if (b == '\n') {
+                if (!empty) {
+                    rows++;
+                }
+                empty = true;
+            } else if (!isSeparator(b)) {
+                empty = false;
+            }
+        }
+        if (!empty) {
+            rows++;
+        }
+        return rows;
+    }
+
+    private static void parseRows(ByteBuffer buffer, int from, int to, double[] data, int row, int numCols)
+            throws IOException {
+        int index = row * numCols;
+        int col = 0;
+        int i = from;
+        while (i < to) {
+            byte b = buffer.get(i);
+            if (b == '\n') {
+                if (col != 0 && col != numCols) {
+                    throw new IOException(String.format("Row %d has %d values instead of %d", row, col, numCols));
+                }
+                if (col != 0) {
+                    row++;
+                }
+                col = 0;
+                i++;
+            } else if (isSeparator(b)) {
+                i++;
+            } else {
+                if (col == numCols) {
+                    throw new IOException(String.format("Row %d has more than %d values", row, numCols));
+                }
+                int end = i;
+                while (end < to && !isSeparator(buffer.get(end)) && buffer.get(end) != '\n') {
+                    end++;
+                }
+                data[index++] = parseDouble(buffer, i, end);
+                col++;
+                i = end;
+            }
+        }
+        if (col != 0 && col != numCols) {
+            throw new IOException(String.format("Row %d has %d values instead of %d", row, col, numCols));
+        }
+    }
+
+    /**
+     * Parses a decimal number from bytes. Numbers with at most 15-16 significant digits and a small exponent (all
+     * the values written by Java or numpy for word vectors) are computed exactly from their integer mantissa and an
+     * exact power of ten, other numbers fall back to Double.parseDouble.
+     */
+    static double parseDouble(ByteBuffer buffer, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        byte b = buffer.get(i);
+        if (b == '-' || b == '+') {
+            negative = b == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        boolean exact = false;
+        boolean dot = false;
+        for (; i < to; i++) {
+            b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                if (mantissa > (MAX_EXACT_MANTISSA - 9) / 10) {
+                    // too many significant digits
+                    exact = false;
+                    break;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (dot) {
+                    exponent--;
+                }
+                exact = true;
+            } else if (b == '.' && !dot) {
+                dot = true;
+            } else if (b == 'e' || b == 'E') {
+                i++;
+                boolean negativeExponent = false;
+                if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                    negativeExponent = buffer.get(i) == '-';
+                    i++;
+                }
+                int value = 0;
+                if (i == to) {
+                    // no digit after the exponent sign
+                    exact = false;
+                }
+                for (; i < to; i++) {
+                    b = buffer.get(i);
+                    if (b < '0' || b > '9' || value > 1000) {
+                        exact = false;
+                        break;
+                    }
+                    value = value * 10 + (b - '0');
+                }
+                exponent += negativeExponent ? -value : value;
+                break;
+            } else {
+                exact = false;
+                break;
+            }
+        }
+
+        if (exact && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+            return negative ? -value : value;
+        }
+
+        byte[] bytes = new byte[to - from];
+        for (int j = 0; j < bytes.length; j++) {
+            bytes[j] = buffer.get(from + j);
+        }
+        return Double.parseDouble(new String(bytes));
+    }
+}
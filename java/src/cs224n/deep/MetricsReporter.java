@@ -0,0 +1,16 @@
+package cs224n.deep;
+
+import java.util.Map;
+
+/**
+ * Receives the training metrics of Telemetry
+ */
+public interface MetricsReporter {
+
+    /**
+     * @param metrics: name and value of every metric, in a fixed order
+     */
+    void report(Map<String, Object> metrics);
+
+    void close();
+}
@@ -14,17 +14,82 @@ public class NER {
         InputStream inputStream = new FileInputStream(args[0]);
         Properties properties = new Properties();
         properties.load(inputStream);
+        Utils.fastMath = Boolean.valueOf(properties.getProperty("fastMath", "false"));  // fast tanh and dropout draws
 
-        // this reads in the train and test datasets
-        List<Datum> trainData = FeatureFactory.readTrainData(properties.getProperty("trainFile"));
+        if (properties.getProperty("sweep", "").trim().length() > 0) {
+            // grid or random search over the hyperparameters instead of a single model
+            Sweep.run(properties);
+            return;
+        }
+        if (Integer.valueOf(properties.getProperty("distributedWorkers", "0")) > 0) {
+            // data-parallel training by worker processes, this one coordinating them
+            DistributedCoordinator.run(properties, args[0]);
+            return;
+        }
+
+        // this reads in the holdout dataset, the train set is encoded directly once the model is set and the test set
+        // is streamed when tagged
         List<Datum> holdoutData = FeatureFactory.readTestData(properties.getProperty("holdoutFile"));
-        List<Datum> testData = FeatureFactory.readTestData(properties.getProperty("testFile"));
 
         // initialize model
         System.out.println("-- Initialized --");
-        Map<String, Integer> wordToNum = FeatureFactory.initializeVocab("data/vocab.txt");
+        Vocabulary vocab = FeatureFactory.initializeVocab("data/vocab.txt");
         List<String> labels = Arrays.asList("O", "ORG", "PER", "LOC", "MISC");
 
+        WindowModel model = createModel(properties, vocab, labels);
+        model.printParameters();
+        model.telemetry = createTelemetry(properties);
+
+        String loadModel = properties.getProperty("loadModel");
+        if (loadModel != null) {
+            // Loading from a checkpoint
+            model.loadCheckpoint(loadModel);
+        } else {
+            // Standard loading
+            //model.loadVocab(FeatureFactory.readWordVectors("data/wordVectors.txt"));
+            model.initVocab();
+            model.initWeights();
+        }
+
+        // Loading from files
+        //model.loadVocab(SimpleMatrix.loadCSV("data/saved-vocab.csv"));
+        //model.loadWeightsU(SimpleMatrix.loadCSV("data/saved-U.csv"));
+        //model.loadWeightsW(SimpleMatrix.loadCSV("data/saved-W.csv"));
+
+        int gradientCheck = Integer.valueOf(properties.getProperty("gradientCheck", "0"));  // random windows checked
+        if (gradientCheck > 0) {
+            System.out.println("-- Computing gradient checks --");
+            GradientCheck check = new GradientCheck(model, model.numThreads);
+            System.out.println(check.checkU(gradientCheck, 1000));
+            System.out.println(check.checkW(gradientCheck, 1000));
+            System.out.println(check.checkX(gradientCheck, 1000));
+        }
+        
+        System.out.println("-- Training data --");
+        Corpus trainExamples = CorpusReader.readCorpus(properties.getProperty("trainFile"), vocab, labels,
+                model.windowSize, false);
+        try {
+            model.train(trainExamples, model.encode(holdoutData, false));
+        } finally {
+            if (model.telemetry != null) {
+                model.telemetry.close();
+            }
+        }
+
+        model.dumpCheckpoint(properties.getProperty("saveModel", "data/saved-model.bin"));
+
+        System.out.println("-- Test data --");
+        model.test(properties.getProperty("testFile"), "test_prediction.out");
+    }
+
+    /**
+     * Model with the network and optimization parameters of the properties, its weights not initialized
+     * @param properties
+     * @param vocab
+     * @param labels
+     * @return
+     */
+    static WindowModel createModel(Properties properties, Vocabulary vocab, List<String> labels) {
         int windowSize = Integer.valueOf(properties.getProperty("windowSize", "7"));     // size of window
         int wordSize = Integer.valueOf(properties.getProperty("wordSize", "50"));      // size of word vector
         int hiddenSize = Integer.valueOf(properties.getProperty("hiddenSize", "100"));   // number of hidden neurons
@@ -33,39 +98,58 @@ public class NER {
         double lrW0 = Double.valueOf(properties.getProperty("lrW0", "1e-2"));	// base learning rate for W
         double lrL0 = Double.valueOf(properties.getProperty("lrL0", "1e-2"));	// base learning rate for L
         double tau = Double.valueOf(properties.getProperty("tau", "0.5"));        // learning rate decrease speed
-        double lambda = Double.valueOf(properties.getProperty("lambda", "13-3"));   // regularization weight (use 0 for disabled)
+        double lambda = Double.valueOf(properties.getProperty("lambda", "1e-3"));   // regularization weight (use 0 for disabled)
         double dropoutX = Double.valueOf(properties.getProperty("dropoutX", "1."));  // probability of keeping X activated during training
         double dropoutZ = Double.valueOf(properties.getProperty("dropoutZ", "1."));  // probability of keeping Z activated during training
+        int numThreads = Integer.valueOf(properties.getProperty("numThreads", "1"));  // number of training threads
+        int batchSize = Integer.valueOf(properties.getProperty("batchSize", "1"));  // number of windows per SGD step
+        int cacheWords = Integer.valueOf(properties.getProperty("projectionCacheWords", "0"));  // precomputed words when testing
+        boolean float32 = Boolean.valueOf(properties.getProperty("float32", "false"));  // word vectors in single precision
+        String sampling = properties.getProperty("sampling", EpochScheduler.NONE).trim();  // order of the windows every epoch
+        String samplingSeed = properties.getProperty("samplingSeed", "").trim();  // seed of the orders, empty for random
+        String optimizer = properties.getProperty("optimizer", Optimizer.SGD).trim();  // sgd, adagrad or adam
 
         WindowModel model = new WindowModel(
                 windowSize, wordSize, hiddenSize,
                 maxEpochs, lrU0, lrW0, lrL0,
                 tau, lambda, dropoutX, dropoutZ,
-                wordToNum, labels);
-
-        // Standard loading
-        //model.loadVocab(FeatureFactory.readWordVectors("data/wordVectors.txt"));
-        model.initVocab();
-        model.initWeights();
-
-        // Loading from files
-        //model.loadVocab(SimpleMatrix.loadCSV("data/saved-vocab.csv"));
-        //model.loadWeightsU(SimpleMatrix.loadCSV("data/saved-U.csv"));
-        //model.loadWeightsW(SimpleMatrix.loadCSV("data/saved-W.csv"));
-
-        //System.out.println("-- Computing gradient checks --");
-        //System.out.println(String.format("U gradient check error: %f", model.computeUgradCheck(100, 1e-4)));
-        //System.out.println(String.format("W gradient check error: %f", model.computeWgradCheck(1, 1e-4)));
-        //System.out.println(String.format("X gradient check error: %f", model.computeXgradCheck(1, 1e-4)));
-        
-        System.out.println("-- Training data --");
-        model.train(trainData, holdoutData);
-
-        model.dumpWeightsU("data/saved-U.csv");
-        model.dumpWeigthsW("data/saved-W.csv");
-        model.dumpVocab("data/saved-vocab.csv");
+                vocab, labels);
+        model.numThreads = numThreads;
+        model.batchSize = batchSize;
+        model.projectionCacheWords = cacheWords;
+        model.float32 = float32;
+        model.sampling = sampling;
+        model.optimizer = optimizer;
+        if (samplingSeed.length() > 0) {
+            model.samplingSeed = Long.valueOf(samplingSeed);
+        }
+        return model;
+    }
 
-        System.out.println("-- Test data --");
-        model.test(testData, "test_prediction.out");
+    /**
+     * Telemetry from the properties: telemetry is a comma separated list of reporters (jmx, json), telemetryFile the
+     * JSON-lines file and telemetryPeriod the seconds between two reports
+     * @return null if no reporter is given
+     */
+    private static Telemetry createTelemetry(Properties properties) throws IOException {
+        List<MetricsReporter> reporters = new ArrayList<MetricsReporter>();
+        for (String name : properties.getProperty("telemetry", "").split(",")) {
+            name = name.trim();
+            if (name.equals("jmx")) {
+                try {
+                    reporters.add(new JmxReporter());
+                } catch (javax.management.JMException e) {
+                    throw new IOException("Cannot register the telemetry MBean: " + e.getMessage());
+                }
+            } else if (name.equals("json")) {
+                reporters.add(new JsonLinesReporter(properties.getProperty("telemetryFile", "telemetry.jsonl")));
+            } else if (name.length() > 0) {
+                throw new IllegalArgumentException("Unknown telemetry reporter " + name);
+            }
+        }
+        if (reporters.isEmpty()) {
+            return null;
+        }
+        return new Telemetry(Integer.valueOf(properties.getProperty("telemetryPeriod", "10")), reporters);
     }
 }
@@ -0,0 +1,251 @@
+package cs224n.deep;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Update rule of U, W and L from the gradients of a mini-batch, g being the gradient of the log-likelihood (minus the
+ * one of the cross-entropy) summed over the batch:
+ *
+ * - sgd: w += lr g,
+ * - adagrad: w += lr g / (sqrt(G) + epsilon), G being the sum of the squared gradients of the coordinate,
+ * - adam: w += lr m / (sqrt(v) + epsilon), m and v being the bias corrected moving averages of the gradient and of its
+ *   square.
+ *
+ * The weight decay stays the lazy decay of the scales of U and W, decoupled from the adaptive steps (as in AdamW): U and
+ * W hold the weights divided by their scale, and so do the steps added to them.
+ *
+ * The state of U and W is dense. The state of L is allocated for a row the first time its word is in a batch, and only
+ * the rows of the words of the batch are updated, so that the words never seen in training cost no memory and a step
+ * costs no pass over the vocabulary. For adam this is the lazy variant: the moments of a row are not decayed while its
+ * word is absent, and their bias correction counts the steps of the row.
+ *
+ * Like the weights, the state is updated without locking by the Hogwild workers, each with its own workspace.
+ */
+public abstract class Optimizer {
+
+    public static final String SGD = "sgd", ADAGRAD = "adagrad", ADAM = "adam";
+
+    /**
+     * @param name: sgd, adagrad or adam
+     * @param uSize: number of weights of U
+     * @param wSize: number of weights of W
+     * @param numWords: number of rows of L
+     * @param wordSize
+     */
+    public static Optimizer create(String name, int uSize, int wSize, int numWords, int wordSize) {
+        if (name.equals(SGD)) {
+            return new Sgd();
+        } else if (name.equals(ADAGRAD)) {
+            return new AdaGrad(uSize, wSize, numWords, wordSize);
+        } else if (name.equals(ADAM)) {
+            return new Adam(uSize, wSize, numWords, wordSize);
+        }
+        throw new IllegalArgumentException("Unknown optimizer " + name + ", sgd, adagrad or adam");
+    }
+
+    /**
+     * Adds the step of U for the batch of the workspace, after its backward pass
+     * @param ws
+     * @param U: weights divided by scale
+     * @param scale
+     * @param lr
+     */
+    abstract void updateU(Workspace ws, DenseMatrix64F U, double scale, double lr);
+
+    abstract void updateW(Workspace ws, DenseMatrix64F W, double scale, double lr);
+
+    /**
+     * Adds the steps of the rows of L of the words of the batch, only for the turned on units
+     */
+    abstract void updateL(Workspace ws, Embeddings L, double lr);
+
+    /**
+     * @return number of rows of L with a state
+     */
+    public int stateRows() {
+        return 0;
+    }
+
+    /**
+     * Plain SGD, the gradients of U and W are added with one matrix product each and the ones of L are scattered
+     */
+    public static final class Sgd extends Optimizer {
+
+        void updateU(Workspace ws, DenseMatrix64F U, double scale, double lr) {
+            CommonOps.multAddTransA(lr / scale, ws.E, ws.H, U);
+        }
+
+        void updateW(Workspace ws, DenseMatrix64F W, double scale, double lr) {
+            CommonOps.multAddTransA(lr / scale, ws.Delta, ws.X, W);
+        }
+
+        void updateL(Workspace ws, Embeddings L, double lr) {
+            int inputSize = ws.X.numCols;
+            for (int b = 0; b < ws.n; b++) {
+                for (int i = 0; i < ws.windowSize; i++) {
+                    L.addMasked(ws.index[b * ws.windowSize + i], lr, ws.Xgrad.data, ws.Xkept.data,
+                            b * inputSize + i * ws.wordSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-coordinate step sizes: the gradients are computed in the buffers of the workspace, turned into steps in
+     * place by step, then added to the weights
+     */
+    static abstract class Adaptive extends Optimizer {
+
+        // Values of state per weight
+        private final int stateSize;
+        private final int wordSize;
+        private final double[] uState, wState;
+        private final AtomicLong uSteps = new AtomicLong(), wSteps = new AtomicLong();
+        // State and number of steps of each row of L, null for the words not seen yet
+        private final double[][] lState;
+        private final int[] lSteps;
+        private final AtomicInteger rowsAllocated = new AtomicInteger();
+
+        public double epsilon = 1e-8;
+
+        Adaptive(int stateSize, int uSize, int wSize, int numWords, int wordSize) {
+            this.stateSize = stateSize;
+            this.wordSize = wordSize;
+            uState = new double[stateSize * uSize];
+            wState = new double[stateSize * wSize];
+            lState = new double[numWords][];
+            lSteps = new int[numWords];
+        }
+
+        /**
+         * Replaces the gradient by the step of the coordinates, and updates their state
+         * @param g: gradient, from offset (included) to offset + length (excluded)
+         * @param offset
+         * @param length
+         * @param state: stateSize * length values, the i-th value of coordinate j at i * length + j
+         * @param t: number of steps of the coordinates, this one included
+         * @param lr
+         */
+        abstract void step(double[] g, int offset, int length, double[] state, long t, double lr);
+
+        void updateU(Workspace ws, DenseMatrix64F U, double scale, double lr) {
+            ws.allocateGradients(lState.length);
+            CommonOps.multTransA(ws.E, ws.H, ws.Ugrad);
+            step(ws.Ugrad.data, 0, ws.Ugrad.data.length, uState, uSteps.incrementAndGet(), lr);
+            CommonOps.addEquals(U, 1. / scale, ws.Ugrad);
+        }
+
+        void updateW(Workspace ws, DenseMatrix64F W, double scale, double lr) {
+            ws.allocateGradients(lState.length);
+            // X already has its dropout mask applied
+            CommonOps.multTransA(ws.Delta, ws.X, ws.Wgrad);
+            step(ws.Wgrad.data, 0, ws.Wgrad.data.length, wState, wSteps.incrementAndGet(), lr);
+            CommonOps.addEquals(W, 1. / scale, ws.Wgrad);
+        }
+
+        void updateL(Workspace ws, Embeddings L, double lr) {
+            ws.allocateGradients(lState.length);
+            int numRows = sumRows(ws);
+            for (int r = 0; r < numRows; r++) {
+                int word = ws.rows[r];
+                double[] state = lState[word];
+                if (state == null) {
+                    // a concurrent allocation of the same row only loses the first step of one of the workers
+                    state = new double[stateSize * wordSize];
+                    lState[word] = state;
+                    rowsAllocated.incrementAndGet();
+                }
+                step(ws.rowGrad, r * wordSize, wordSize, state, ++lSteps[word], lr);
+                L.addRow(word, ws.rowGrad, r * wordSize);
+            }
+        }
+
+        /**
+         * Sums the masked gradients of the words of the batch per distinct word, a word being often more than once in
+         * a window (padding) or a batch. The row of a word is found with ws.rowOf, cleared at the end for the words of
+         * the batch only.
+         * @return number of distinct words, listed in ws.rows with their gradients in ws.rowGrad
+         */
+        private int sumRows(Workspace ws) {
+            int inputSize = ws.X.numCols;
+            double[] Xgrad = ws.Xgrad.data;
+            double[] Xkept = ws.Xkept.data;
+            int numRows = 0;
+            for (int b = 0; b < ws.n; b++) {
+                for (int i = 0; i < ws.windowSize; i++) {
+                    int word = ws.index[b * ws.windowSize + i];
+                    int r = ws.rowOf[word] - 1;
+                    if (r < 0) {
+                        r = numRows++;
+                        ws.rows[r] = word;
+                        ws.rowOf[word] = r + 1;
+                        Arrays.fill(ws.rowGrad, r * wordSize, (r + 1) * wordSize, 0.);
+                    }
+                    int offset = b * inputSize + i * wordSize;
+                    for (int j = 0; j < wordSize; j++) {
+                        if (Xkept[offset + j] != 0) {
+                            ws.rowGrad[r * wordSize + j] += Xgrad[offset + j];
+                        }
+                    }
+                }
+            }
+            for (int r = 0; r < numRows; r++) {
+                ws.rowOf[ws.rows[r]] = 0;
+            }
+            return numRows;
+        }
+
+        public int stateRows() {
+            return rowsAllocated.get();
+        }
+    }
+
+    /**
+     * State: sum of the squared gradients
+     */
+    public static final class AdaGrad extends Adaptive {
+
+        AdaGrad(int uSize, int wSize, int numWords, int wordSize) {
+            super(1, uSize, wSize, numWords, wordSize);
+        }
+
+        void step(double[] g, int offset, int length, double[] state, long t, double lr) {
+            for (int j = 0; j < length; j++) {
+                double gj = g[offset + j];
+                double sum = state[j] + gj * gj;
+                state[j] = sum;
+                g[offset + j] = lr * gj / (Math.sqrt(sum) + epsilon);
+            }
+        }
+    }
+
+    /**
+     * State: first moment then second moment
+     */
+    public static final class Adam extends Adaptive {
+
+        public double beta1 = .9, beta2 = .999;
+
+        Adam(int uSize, int wSize, int numWords, int wordSize) {
+            super(2, uSize, wSize, numWords, wordSize);
+        }
+
+        void step(double[] g, int offset, int length, double[] state, long t, double lr) {
+            // bias corrections folded in the learning rate
+            double lrt = lr * Math.sqrt(1. - Math.pow(beta2, t)) / (1. - Math.pow(beta1, t));
+            for (int j = 0; j < length; j++) {
+                double gj = g[offset + j];
+                double m = beta1 * state[j] + (1. - beta1) * gj;
+                double v = beta2 * state[length + j] + (1. - beta2) * gj * gj;
+                state[j] = m;
+                state[length + j] = v;
+                g[offset + j] = lrt * m / (Math.sqrt(v) + epsilon);
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package cs224n.deep;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Text output without a Writer: ASCII strings are copied byte by byte, the other ones are encoded in the default
+ * charset as FileWriter does. Either written to a file through a large buffer and its channel, or kept in memory
+ * in a growing buffer to be appended to another OutputBuffer later.
+ */
+public class OutputBuffer {
+
+    private final FileChannel channel;
+    private ByteBuffer buffer;
+
+    /**
+     * In memory
+     * @param capacity: initial capacity in bytes
+     */
+    public OutputBuffer(int capacity) {
+        this.channel = null;
+        this.buffer = ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Truncates the file
+     * @param filename
+     * @param capacity: size of the buffer in bytes, it is written when full
+     * @throws IOException
+     */
+    public OutputBuffer(String filename, int capacity) throws IOException {
+        this.channel = new FileOutputStream(filename).getChannel();
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Makes room for length bytes, by writing the buffer or by growing it
+     */
+    private void reserve(int length) throws IOException {
+        if (buffer.remaining() >= length) {
+            return;
+        }
+        if (channel != null) {
+            flush();
+            if (buffer.remaining() >= length) {
+                return;
+            }
+        }
+        ByteBuffer larger = channel != null ? ByteBuffer.allocateDirect(buffer.position() + length)
+                : ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + length));
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+
+    public OutputBuffer append(String text) throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) >= 0x80) {
+                return append(text.getBytes(Charset.defaultCharset()));
+            }
+        }
+        reserve(length);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * @param c: ASCII character
+     */
+    public OutputBuffer append(char c) throws IOException {
+        reserve(1);
+        buffer.put((byte) c);
+        return this;
+    }
+
+    public OutputBuffer append(byte[] bytes) throws IOException {
+        reserve(bytes.length);
+        buffer.put(bytes);
+        return this;
+    }
+
+    /**
+     * Appends the content of an in-memory buffer, which is then empty
+     * @param other
+     * @throws IOException
+     */
+    public void appendTo(OutputBuffer other) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            if (other.channel != null && !other.buffer.hasRemaining()) {
+                other.flush();
+            }
+            int length = other.channel != null ? Math.min(buffer.remaining(), other.buffer.remaining())
+                    : buffer.remaining();
+            other.reserve(length);
+            int limit = buffer.limit();
+            buffer.limit(buffer.position() + length);
+            other.buffer.put(buffer);
+            buffer.limit(limit);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Writes the buffer to the file
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
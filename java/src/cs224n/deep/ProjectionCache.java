@@ -0,0 +1,219 @@
+package cs224n.deep;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
+
+/**
+ * Inference cache of the first layer. The input of a window is the concatenation of the vectors of its words, so
+ * W x is the bias of W plus the sum over the positions p of W_p L[word], W_p being the columns of W for position p.
+ *
+ * The contributions W_p L[word] of the hotWords first words of the vocabulary (the most frequent ones, the vocabulary
+ * being sorted by frequency) are precomputed for every position. The other ones are computed on demand and kept in a
+ * cache of each thread (see ColdCache), which allocates nothing per word. The hidden pre-activation of a window is
+ * then windowSize vector additions instead of a product with W.
+ *
+ * The cache is a snapshot of W and L as given, no scale is applied to them: it must be rebuilt when they change,
+ * including when the weights are scaled for prediction.
+ */
+public class ProjectionCache {
+
+    public final int windowSize, wordSize, hiddenSize, hotWords;
+    private final int coldSize;
+    private final DenseMatrix64F W;
+    private final Embeddings L;
+
+    // Last column of W
+    private final double[] bias;
+    // Contributions of the hot words for each position, hot[p] is hotWords x hiddenSize
+    private final double[][] hot;
+
+    // Contributions of the other words
+    private final ThreadLocal<ColdCache> cold = new ThreadLocal<ColdCache>() {
+        protected ColdCache initialValue() {
+            return new ColdCache();
+        }
+    };
+
+    /**
+     * @param W: hiddenSize x (windowSize * wordSize + 1), the weights used for prediction
+     * @param L: word vectors
+     * @param windowSize
+     * @param hotWords: number of words precomputed for every position
+     * @param coldSize: number of contributions of other words kept by each thread
+     */
+    public ProjectionCache(DenseMatrix64F W, Embeddings L, int windowSize, int hotWords, int coldSize) {
+        this.W = W;
+        this.L = L;
+        this.windowSize = windowSize;
+        this.wordSize = L.wordSize;
+        this.hiddenSize = W.numRows;
+        this.hotWords = Math.min(hotWords, L.numWords);
+        this.coldSize = Math.max(coldSize, 1);
+        if (W.numCols != windowSize * wordSize + 1) {
+            throw new IllegalArgumentException("W does not match the window and word sizes");
+        }
+
+        bias = new double[hiddenSize];
+        for (int i = 0; i < hiddenSize; i++) {
+            bias[i] = W.get(i, W.numCols - 1);
+        }
+
+        // One product per position: L_hot W_p^T
+        DenseMatrix64F Lhot = new DenseMatrix64F(this.hotWords, wordSize);
+        for (int w = 0; w < this.hotWords; w++) {
+            L.copyRow(w, Lhot.data, w * wordSize);
+        }
+        hot = new double[windowSize][];
+        for (int p = 0; p < windowSize; p++) {
+            DenseMatrix64F Wp = CommonOps.extract(W, 0, hiddenSize, p * wordSize, (p + 1) * wordSize);
+            DenseMatrix64F block = new DenseMatrix64F(this.hotWords, hiddenSize);
+            CommonOps.multTransB(Lhot, Wp, block);
+            hot[p] = block.data;
+        }
+    }
+
+    /**
+     * Contributions of the words which are not precomputed, computed by one thread: an open-addressing table (linear
+     * probing) from word * windowSize + position to an entry of values. When all the coldSize entries are used, the
+     * entry replaced is chosen by a clock hand skipping once the entries used since it last passed (an approximation
+     * of LRU). values grows by doubling up to coldSize entries, so a miss allocates nothing.
+     */
+    private final class ColdCache {
+        // Key + 1 of each slot (0 for an empty slot) and its entry
+        final int[] slotKeys, slotEntries;
+        final int mask;
+        // Slot of each entry and whether it was used since the clock hand last passed
+        final int[] entrySlots;
+        final boolean[] used;
+        // Contribution of entry e from e * hiddenSize
+        double[] values;
+        int size, hand;
+        // Vector of the word being computed
+        final double[] vector = new double[wordSize];
+
+        ColdCache() {
+            int capacity = Integer.highestOneBit(coldSize) * 4;
+            slotKeys = new int[capacity];
+            slotEntries = new int[capacity];
+            mask = capacity - 1;
+            entrySlots = new int[coldSize];
+            used = new boolean[coldSize];
+            values = new double[Math.min(coldSize, 1024) * hiddenSize];
+        }
+
+        private int home(int key) {
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        /**
+         * @return offset in values of W_p L[word], computed if it is not in the cache
+         */
+        int offset(int position, int word) {
+            int key = word * windowSize + position;
+            int slot = home(key);
+            while (slotKeys[slot] != 0) {
+                if (slotKeys[slot] == key + 1) {
+                    int entry = slotEntries[slot];
+                    used[entry] = true;
+                    return entry * hiddenSize;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            int entry;
+            if (size < coldSize) {
+                entry = size++;
+                if (size * hiddenSize > values.length) {
+                    double[] larger = new double[Math.min(coldSize, 2 * (values.length / hiddenSize)) * hiddenSize];
+                    System.arraycopy(values, 0, larger, 0, values.length);
+                    values = larger;
+                }
+            } else {
+                while (used[hand]) {
+                    used[hand] = false;
+                    hand = (hand + 1) % coldSize;
+                }
+                entry = hand;
+                hand = (hand + 1) % coldSize;
+                remove(entrySlots[entry]);
+                // the removal may have moved the keys of the probe sequence
+                slot = home(key);
+                while (slotKeys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+            }
+            slotKeys[slot] = key + 1;
+            slotEntries[slot] = entry;
+            entrySlots[entry] = slot;
+            used[entry] = false;
+            compute(position, word, entry * hiddenSize);
+            return entry * hiddenSize;
+        }
+
+        /**
+         * Empties a slot, moving back the following keys of its cluster which would not be found any more
+         */
+        private void remove(int slot) {
+            slotKeys[slot] = 0;
+            for (int next = (slot + 1) & mask; slotKeys[next] != 0; next = (next + 1) & mask) {
+                int home = home(slotKeys[next] - 1);
+                // the key stays if its home is cyclically in (slot, next]
+                boolean stays = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+                if (!stays) {
+                    slotKeys[slot] = slotKeys[next];
+                    slotEntries[slot] = slotEntries[next];
+                    entrySlots[slotEntries[slot]] = slot;
+                    slotKeys[next] = 0;
+                    slot = next;
+                }
+            }
+        }
+
+        /**
+         * Computes W_p L[word] in values from offset
+         */
+        private void compute(int position, int word, int offset) {
+            L.copyRow(word, vector, 0);
+            int inputSize = W.numCols;
+            for (int i = 0; i < hiddenSize; i++) {
+                int rowOffset = i * inputSize + position * wordSize;
+                double sum = 0;
+                for (int j = 0; j < wordSize; j++) {
+                    sum += W.data[rowOffset + j] * vector[j];
+                }
+                values[offset + i] = sum;
+            }
+        }
+    }
+
+    /**
+     * Hidden pre-activation of a window
+     * @param index: indices in L of the words of the window, from offset
+     * @param offset
+     * @param z: filled from zOffset with the hiddenSize values of W x
+     * @param zOffset
+     */
+    public void project(int[] index, int offset, double[] z, int zOffset) {
+        System.arraycopy(bias, 0, z, zOffset, hiddenSize);
+        ColdCache coldCache = null;
+        for (int p = 0; p < windowSize; p++) {
+            int word = index[offset + p];
+            double[] c;
+            int cOffset;
+            if (word < hotWords) {
+                c = hot[p];
+                cOffset = word * hiddenSize;
+            } else {
+                if (coldCache == null) {
+                    coldCache = cold.get();
+                }
+                cOffset = coldCache.offset(p, word);
+                c = coldCache.values;
+            }
+            for (int i = 0; i < hiddenSize; i++) {
+                z[zOffset + i] += c[cOffset + i];
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package cs224n.deep;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Exports the int8 QuantizedModel of a checkpoint and reports its accuracy against the model on the holdout and test
+ * sets: accuracy over all the windows, precision, recall and F1 over the entity tokens (the labels other than O),
+ * agreement of the two models, time of a pass and size of the weights.
+ *
+ * USAGE: java -cp classes cs224n.deep.Quantize config.properties
+ * with loadModel, vocabFile, quantizedModel, holdoutFile and testFile.
+ */
+public class Quantize {
+
+    /**
+     * Predictions on a set and their time
+     */
+    private static class Run {
+        final int[] predicted;
+        final long nanos;
+
+        Run(int[] predicted, long nanos) {
+            this.predicted = predicted;
+            this.nanos = nanos;
+        }
+    }
+
+    private static Run predict(WindowModel model, Corpus examples) {
+        int[] predicted = new int[examples.size()];
+        Workspace ws = model.newWorkspace();
+        long start = System.nanoTime();
+        for (int from = 0; from < examples.size(); from += ws.batchSize) {
+            int n = Math.min(ws.batchSize, examples.size() - from);
+            ws.setBatch(n);
+            for (int b = 0; b < n; b++) {
+                System.arraycopy(examples.words, examples.windows[from + b], ws.index, b * model.windowSize,
+                        model.windowSize);
+            }
+            ws.loadX(model.L);
+            ws.forward(model.U.getMatrix(), 1., model.W.getMatrix(), 1., false);
+            for (int b = 0; b < n; b++) {
+                predicted[from + b] = ws.predicted(b);
+            }
+        }
+        return new Run(predicted, System.nanoTime() - start);
+    }
+
+    private static Run predict(QuantizedModel model, Corpus examples) {
+        int[] predicted = new int[examples.size()];
+        long start = System.nanoTime();
+        for (int w = 0; w < examples.size(); w++) {
+            predicted[w] = model.predict(examples.words, examples.windows[w]);
+        }
+        return new Run(predicted, System.nanoTime() - start);
+    }
+
+    private static void report(String name, Corpus examples, Run run, int other) {
+        int correct = 0, truePositives = 0, predictedEntities = 0, entities = 0;
+        for (int w = 0; w < examples.size(); w++) {
+            int label = examples.labels[examples.center(w)];
+            int predicted = run.predicted[w];
+            if (predicted == label) {
+                correct++;
+            }
+            if (predicted != other) {
+                predictedEntities++;
+                if (predicted == label) {
+                    truePositives++;
+                }
+            }
+            if (label != other) {
+                entities++;
+            }
+        }
+        double precision = (double) truePositives / Math.max(predictedEntities, 1);
+        double recall = (double) truePositives / Math.max(entities, 1);
+        double f1 = precision + recall > 0 ? 2 * precision * recall / (precision + recall) : 0;
+        System.out.println(String.format("%-8s %8.2f%% %10.2f%% %8.2f%% %8.2f%% %10.0f",
+                name, 100. * correct / examples.size(), 100 * precision, 100 * recall, 100 * f1, run.nanos / 1e6));
+    }
+
+    private static void compare(String filename, WindowModel model, QuantizedModel quantized) throws IOException {
+        Corpus examples = CorpusReader.readCorpus(filename, model.vocab, model.labels, model.windowSize, false);
+        // twice, the first pass warms up the JIT
+        predict(model, examples);
+        predict(quantized, examples);
+        Run reference = predict(model, examples);
+        Run run = predict(quantized, examples);
+
+        int other = Math.max(model.labels.indexOf("O"), 0);
+        int agree = 0;
+        for (int w = 0; w < examples.size(); w++) {
+            if (reference.predicted[w] == run.predicted[w]) {
+                agree++;
+            }
+        }
+        System.out.println(String.format("-- %s: %d windows --", filename, examples.size()));
+        System.out.println("model    accuracy   entity P  entity R  entity F1  ms/pass");
+        report(model.float32 ? "float32" : "double", examples, reference, other);
+        report("int8", examples, run, other);
+        System.out.println(String.format("agreement %.2f%%", 100. * agree / examples.size()));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("USAGE: java -cp classes cs224n.deep.Quantize config.properties");
+            return;
+        }
+
+        InputStream inputStream = new FileInputStream(args[0]);
+        Properties properties = new Properties();
+        properties.load(inputStream);
+
+        String modelFile = properties.getProperty("loadModel", "data/saved-model.bin");
+        String vocabFile = properties.getProperty("vocabFile", "data/vocab.txt");
+        String quantizedFile = properties.getProperty("quantizedModel", "data/quantized-model.bin");
+
+        Vocabulary vocab = FeatureFactory.initializeVocab(vocabFile);
+        WindowModel model = Checkpoint.open(modelFile).newModel(vocab);
+        model.batchSize = Integer.valueOf(properties.getProperty("tagBatchSize", "16"));
+        QuantizedModel.quantize(model).write(quantizedFile);
+        // evaluate what was written
+        QuantizedModel quantized = QuantizedModel.read(quantizedFile);
+        quantized.check(vocab);
+
+        int valueSize = model.float32 ? 4 : 8;
+        long lBytes = (long) valueSize * model.numWords * model.wordSize;
+        long weightBytes = 8L * (model.K * (model.hiddenSize + 1) + model.hiddenSize * (model.windowSize * model.wordSize + 1));
+        long lQuantizedBytes = (long) model.numWords * (model.wordSize + 4);
+        System.out.println(String.format("-- Quantized model written to %s --", quantizedFile));
+        System.out.println(String.format("weights %.1f MB (L %.1f MB), int8 %.1f MB (L %.1f MB)",
+                (weightBytes + lBytes) / 1e6, lBytes / 1e6, quantized.sizeInBytes() / 1e6, lQuantizedBytes / 1e6));
+
+        compare(properties.getProperty("holdoutFile", "data/dev"), model, quantized);
+        compare(properties.getProperty("testFile", "data/test"), model, quantized);
+    }
+}
@@ -0,0 +1,329 @@
+package cs224n.deep;
+
+import org.ejml.data.DenseMatrix64F;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Int8 inference model, exported from a trained WindowModel for serving.
+ *
+ * Every row of U, W and L is quantized symmetrically, q = round(v / scale) with scale = max |v| / 127, the biases
+ * (last columns of U and W) being kept in float. As every word has its own scale, the first layer is a sum over the
+ * positions p of integer dot products between the columns of W for p and the quantized vector of the word:
+ *   z_i = bias_i + wScale_i * sum_p lScale[word_p] * (Wq_i,p . Lq[word_p])
+ * The hidden units are in [-1, 1] after tanh, they are quantized with the fixed scale 1/127 and the scores are integer
+ * dot products too. The softmax is monotonic, the predicted label is the highest score.
+ *
+ * For the forward pass W is kept transposed by position in an int array (Wt[p][j][i], 4 bytes per value of W but W is
+ * small), so that a word is added to the hidden units of its position with integer axpy loops, which the JIT turns
+ * into vector instructions, instead of short dot products.
+ *
+ * L takes one byte per value (plus a float per word) instead of 8, or 4 in float32 mode.
+ *
+ * File layout (little-endian): the magic number, the format version, the dimensions, the fingerprint of the vocabulary
+ * and the labels as in Checkpoint, padded to a multiple of 8 bytes, followed by the scales and biases (floats) and the
+ * quantized rows of U, W and L.
+ */
+public class QuantizedModel {
+
+    public static final int MAGIC = 0x4E455251; // "NERQ"
+    public static final int VERSION = 1;
+
+    public final int windowSize, wordSize, hiddenSize, numWords, K;
+    public final long vocabFingerprint;
+    public final List<String> labels;
+
+    // Quantized rows, U and W without their bias column
+    private final byte[] Uq, Wq, Lq;
+    // Scale of every row
+    private final float[] uScale, wScale, lScale;
+    private final float[] uBias, wBias;
+    // Wq transposed by position, built by prepare
+    private int[] Wt;
+
+    /**
+     * Buffers of a thread
+     */
+    private final class Buffers {
+        final int[] sums = new int[hiddenSize];
+        final float[] z = new float[hiddenSize];
+        final byte[] h = new byte[hiddenSize];
+    }
+
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        protected Buffers initialValue() {
+            return new Buffers();
+        }
+    };
+
+    private QuantizedModel(int windowSize, int wordSize, int hiddenSize, int numWords, long vocabFingerprint,
+                           List<String> labels) {
+        this.windowSize = windowSize;
+        this.wordSize = wordSize;
+        this.hiddenSize = hiddenSize;
+        this.numWords = numWords;
+        this.K = labels.size();
+        this.vocabFingerprint = vocabFingerprint;
+        this.labels = Collections.unmodifiableList(new ArrayList<String>(labels));
+        Uq = new byte[K * hiddenSize];
+        Wq = new byte[hiddenSize * windowSize * wordSize];
+        Lq = new byte[numWords * wordSize];
+        uScale = new float[K];
+        wScale = new float[hiddenSize];
+        lScale = new float[numWords];
+        uBias = new float[K];
+        wBias = new float[hiddenSize];
+    }
+
+    /**
+     * Quantizes the weights of a model, the lazy decay must have been applied
+     * @param model
+     * @return
+     */
+    public static QuantizedModel quantize(WindowModel model) {
+        QuantizedModel q = new QuantizedModel(model.windowSize, model.wordSize, model.hiddenSize, model.numWords,
+                model.vocab.fingerprint(), model.labels);
+        DenseMatrix64F U = model.U.getMatrix();
+        for (int k = 0; k < q.K; k++) {
+            q.uScale[k] = quantizeRow(U.data, k * U.numCols, q.hiddenSize, q.Uq, k * q.hiddenSize);
+            q.uBias[k] = (float) U.get(k, q.hiddenSize);
+        }
+        DenseMatrix64F W = model.W.getMatrix();
+        int inputSize = q.windowSize * q.wordSize;
+        for (int i = 0; i < q.hiddenSize; i++) {
+            q.wScale[i] = quantizeRow(W.data, i * W.numCols, inputSize, q.Wq, i * inputSize);
+            q.wBias[i] = (float) W.get(i, inputSize);
+        }
+        double[] row = new double[q.wordSize];
+        for (int w = 0; w < q.numWords; w++) {
+            model.L.copyRow(w, row, 0);
+            q.lScale[w] = quantizeRow(row, 0, q.wordSize, q.Lq, w * q.wordSize);
+        }
+        q.prepare();
+        return q;
+    }
+
+    private void prepare() {
+        int inputSize = windowSize * wordSize;
+        Wt = new int[hiddenSize * inputSize];
+        for (int i = 0; i < hiddenSize; i++) {
+            for (int j = 0; j < inputSize; j++) {
+                Wt[j * hiddenSize + i] = Wq[i * inputSize + j];
+            }
+        }
+    }
+
+    /**
+     * Quantizes length values from offset in q from qOffset
+     * @return scale of the row
+     */
+    private static float quantizeRow(double[] values, int offset, int length, byte[] q, int qOffset) {
+        double max = 0;
+        for (int j = 0; j < length; j++) {
+            max = Math.max(max, Math.abs(values[offset + j]));
+        }
+        if (max == 0) {
+            return 0;
+        }
+        double scale = max / 127;
+        for (int j = 0; j < length; j++) {
+            q[qOffset + j] = (byte) Math.round(values[offset + j] / scale);
+        }
+        return (float) scale;
+    }
+
+    /**
+     * @return bytes taken by the weights
+     */
+    public long sizeInBytes() {
+        return Uq.length + Wq.length + Lq.length
+                + 4L * (uScale.length + wScale.length + lScale.length + uBias.length + wBias.length);
+    }
+
+    /**
+     * Checks that the model was exported with this vocabulary
+     * @param vocab
+     * @throws IOException
+     */
+    public void check(Vocabulary vocab) throws IOException {
+        if (numWords != vocab.size() || vocabFingerprint != vocab.fingerprint()) {
+            throw new IOException("Quantized model vocabulary does not match the vocabulary");
+        }
+    }
+
+    /**
+     * Predicts the label of a window, the weights are only read so any number of threads can predict
+     * @param index: indices in L of the words of the window, from offset
+     * @param offset
+     * @return index of the label
+     */
+    public int predict(int[] index, int offset) {
+        Buffers buf = buffers.get();
+        int[] sums = buf.sums;
+        float[] z = buf.z;
+        byte[] h = buf.h;
+        Arrays.fill(z, 0);
+        for (int p = 0; p < windowSize; p++) {
+            int word = index[offset + p];
+            int wordOffset = word * wordSize;
+            Arrays.fill(sums, 0);
+            for (int j = 0; j < wordSize; j++) {
+                int x = Lq[wordOffset + j];
+                if (x == 0) {
+                    continue;
+                }
+                int column = (p * wordSize + j) * hiddenSize;
+                for (int i = 0; i < hiddenSize; i++) {
+                    sums[i] += Wt[column + i] * x;
+                }
+            }
+            float scale = lScale[word];
+            for (int i = 0; i < hiddenSize; i++) {
+                z[i] += scale * sums[i];
+            }
+        }
+        for (int i = 0; i < hiddenSize; i++) {
+            h[i] = (byte) Math.round(127 * Utils.tanh(wBias[i] + wScale[i] * z[i]));
+        }
+
+        int best = 0;
+        float bestScore = Float.NEGATIVE_INFINITY;
+        for (int k = 0; k < K; k++) {
+            float score = uBias[k] + uScale[k] / 127 * dot(Uq, k * hiddenSize, h, 0, hiddenSize);
+            if (score > bestScore) {
+                bestScore = score;
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Integer dot product of length bytes of a from aOffset and of b from bOffset
+     */
+    private static int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        int s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int j = 0;
+        for (; j + 4 <= length; j += 4) {
+            s0 += a[aOffset + j] * b[bOffset + j];
+            s1 += a[aOffset + j + 1] * b[bOffset + j + 1];
+            s2 += a[aOffset + j + 2] * b[bOffset + j + 2];
+            s3 += a[aOffset + j + 3] * b[bOffset + j + 3];
+        }
+        for (; j < length; j++) {
+            s0 += a[aOffset + j] * b[bOffset + j];
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    /**
+     * @param filename
+     * @return true if the file starts with the magic number of a quantized model
+     * @throws IOException
+     */
+    public static boolean isQuantized(String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            return file.length() >= 4 && Integer.reverseBytes(file.readInt()) == MAGIC;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads a quantized model written by write
+     * @param filename
+     * @return
+     * @throws IOException
+     */
+    public static QuantizedModel read(String filename) throws IOException {
+        ByteBuffer buffer = MatrixReader.readFile(filename).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a quantized model: " + filename);
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported quantized model version " + version);
+            }
+            int windowSize = buffer.getInt();
+            int wordSize = buffer.getInt();
+            int hiddenSize = buffer.getInt();
+            int numWords = buffer.getInt();
+            int K = buffer.getInt();
+            long vocabFingerprint = buffer.getLong();
+            List<String> labels = new ArrayList<String>();
+            for (int k = 0; k < K; k++) {
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                labels.add(new String(bytes, Checkpoint.UTF8));
+            }
+            buffer.position(Checkpoint.align(buffer.position()));
+
+            QuantizedModel q = new QuantizedModel(windowSize, wordSize, hiddenSize, numWords, vocabFingerprint, labels);
+            for (float[] values : new float[][]{q.uScale, q.uBias, q.wScale, q.wBias, q.lScale}) {
+                buffer.asFloatBuffer().get(values);
+                buffer.position(buffer.position() + 4 * values.length);
+            }
+            buffer.get(q.Uq);
+            buffer.get(q.Wq);
+            buffer.get(q.Lq);
+            q.prepare();
+            return q;
+        } catch (RuntimeException e) {
+            // BufferUnderflowException or a negative size
+            throw new IOException("Truncated quantized model: " + filename, e);
+        }
+    }
+
+    /**
+     * Writes the model
+     * @param filename
+     * @throws IOException
+     */
+    public void write(String filename) throws IOException {
+        int floats = uScale.length + uBias.length + wScale.length + wBias.length + lScale.length;
+        ByteBuffer header = ByteBuffer.allocate(48 + 4 * K + Checkpoint.labelBytes(labels) + 4 * floats)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(windowSize);
+        header.putInt(wordSize);
+        header.putInt(hiddenSize);
+        header.putInt(numWords);
+        header.putInt(K);
+        header.putLong(vocabFingerprint);
+        for (String label : labels) {
+            byte[] bytes = label.getBytes(Checkpoint.UTF8);
+            header.putInt(bytes.length);
+            header.put(bytes);
+        }
+        header.position(Checkpoint.align(header.position()));
+        for (float[] values : new float[][]{uScale, uBias, wScale, wBias, lScale}) {
+            for (float value : values) {
+                header.putFloat(value);
+            }
+        }
+        header.flip();
+
+        RandomAccessFile file = new RandomAccessFile(filename, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            Checkpoint.writeFully(channel, header);
+            Checkpoint.writeFully(channel, ByteBuffer.wrap(Uq));
+            Checkpoint.writeFully(channel, ByteBuffer.wrap(Wq));
+            Checkpoint.writeFully(channel, ByteBuffer.wrap(Lq));
+        } finally {
+            file.close();
+        }
+    }
+}
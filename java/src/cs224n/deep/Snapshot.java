@@ -0,0 +1,98 @@
+package cs224n.deep;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * Weights of the best epoch so far, for early stopping, and distance of the current weights to them.
+ *
+ * U and W are small: the saved ones are kept in a second buffer, overwritten when an epoch is better and swapped with
+ * the current buffer to restore them. L is copied once, then the training workers mark the rows they update in dirty
+ * (L has no weight decay, the other rows do not change) and only those rows are compared, saved or restored at the
+ * end of the epoch. The distances are computed in the same pass as the copies.
+ */
+public class Snapshot {
+
+    // Saved weights
+    private DenseMatrix64F U, W;
+    private final Embeddings L;
+
+    // Rows of L updated since the last save or restore, set without synchronization by the workers
+    final boolean[] dirty;
+
+    // Frobenius norm of the difference between the weights and the saved ones, as of the last save or restore
+    public double deltaU, deltaW, deltaL;
+
+    /**
+     * Saves the weights of the model, the lazy decay must have been applied
+     */
+    public Snapshot(WindowModel model) {
+        this.U = model.U.getMatrix().copy();
+        this.W = model.W.getMatrix().copy();
+        this.L = model.L.copy();
+        this.dirty = new boolean[L.numWords];
+    }
+
+    /**
+     * Saves the weights of the model as the best ones, the lazy decay must have been applied
+     */
+    public void save(WindowModel model) {
+        deltaU = copy(model.U.getMatrix().data, U.data);
+        deltaW = copy(model.W.getMatrix().data, W.data);
+        deltaL = copyDirtyRows(model.L, L);
+    }
+
+    /**
+     * Restores the saved weights in the model: the saved rows of L are copied back, U and W are swapped with the
+     * saved buffers. The lazy decay must have been applied.
+     */
+    public void restore(WindowModel model) {
+        DenseMatrix64F currentU = model.U.getMatrix();
+        DenseMatrix64F currentW = model.W.getMatrix();
+        deltaU = distance(currentU.data, U.data);
+        deltaW = distance(currentW.data, W.data);
+        deltaL = copyDirtyRows(L, model.L);
+        model.U = SimpleMatrix.wrap(U);
+        model.W = SimpleMatrix.wrap(W);
+        // the current buffers are now the spare ones
+        U = currentU;
+        W = currentW;
+    }
+
+    /**
+     * @return the norm of the difference before the copy
+     */
+    private static double copy(double[] src, double[] dst) {
+        double sum = 0;
+        for (int i = 0; i < src.length; i++) {
+            double d = src[i] - dst[i];
+            sum += d * d;
+            dst[i] = src[i];
+        }
+        return Math.sqrt(sum);
+    }
+
+    private static double distance(double[] a, double[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            double d = a[i] - b[i];
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
+
+    /**
+     * Copies the dirty rows and clears them
+     * @return the norm of the difference before the copy
+     */
+    private double copyDirtyRows(Embeddings src, Embeddings dst) {
+        double sum = 0;
+        for (int w = 0; w < dirty.length; w++) {
+            if (dirty[w]) {
+                sum += src.copyRowTo(w, dst);
+                dirty[w] = false;
+            }
+        }
+        return Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,352 @@
+package cs224n.deep;
+
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Hyperparameter sweep: trains one WindowModel per configuration, several at a time on a bounded pool, and ranks them
+ * by holdout precision along with their wall time.
+ *
+ * A configuration takes the properties of NER, the swept keys (windowSize, hiddenSize, lrU0, lrW0, lrL0, tau, lambda,
+ * dropoutX and dropoutZ) being overridden by sweep.key, a comma separated list of values, and its model is built by
+ * NER.createModel (the keys set nowhere keep its defaults, shown as - in the results). A grid search trains every
+ * combination, a random search trains sweepTrials configurations, each one picking one value of every list, or
+ * drawing log-uniformly a value of a range low:high (random search only, for real values).
+ *
+ * The vocabulary, the training and the holdout sets are read and encoded once, for the largest window size, and only
+ * read by the models: the smaller window sizes are views of the same arrays (Corpus.withWindowSize). Each model has
+ * its own randomly initialized weights.
+ *
+ * USAGE: java -cp classes cs224n.deep.Sweep config.properties
+ * with sweep=grid or random, sweepTrials, sweepSeed, sweepThreads (models trained at the same time), sweepTimeBudget
+ * (seconds per model, 0 for no limit) and sweepResults (tab separated ranked results, none if empty).
+ */
+public class Sweep {
+
+    static final String[] KEYS = {
+            "windowSize", "hiddenSize", "lrU0", "lrW0", "lrL0", "tau", "lambda", "dropoutX", "dropoutZ"};
+
+    /**
+     * A configuration and the result of its training
+     */
+    private static class Trial {
+        final int id;
+        // Value of every key of KEYS, null if it is not set
+        final String[] values;
+        // Model of the configuration until it is trained
+        WindowModel model;
+        double precision;
+        long millis;
+        int epochs;
+        Throwable error;
+
+        Trial(int id, String[] values) {
+            this.id = id;
+            this.values = values;
+        }
+
+        /**
+         * @return the properties with the values of the trial
+         */
+        Properties properties(Properties base) {
+            Properties properties = new Properties();
+            properties.putAll(base);
+            for (int key = 0; key < KEYS.length; key++) {
+                if (values[key] != null) {
+                    properties.setProperty(KEYS[key], values[key]);
+                }
+            }
+            return properties;
+        }
+
+        String value(int key) {
+            return values[key] != null ? values[key] : "-";
+        }
+
+        String describe() {
+            StringBuilder s = new StringBuilder();
+            for (int i = 0; i < KEYS.length; i++) {
+                s.append(i > 0 ? " " : "").append(KEYS[i]).append('=').append(value(i));
+            }
+            return s.toString();
+        }
+    }
+
+    private final Properties properties;
+    // Encoded for the largest window size of the sweep
+    private final Corpus trainExamples, holdoutExamples;
+
+    private Sweep(Properties properties, Corpus trainExamples, Corpus holdoutExamples) {
+        this.properties = properties;
+        this.trainExamples = trainExamples;
+        this.holdoutExamples = holdoutExamples;
+    }
+
+    /**
+     * @return values of the key: the swept ones, or the one of the configuration (null if it is not set)
+     */
+    private static String[] values(Properties properties, int key) {
+        String swept = properties.getProperty("sweep." + KEYS[key], "").trim();
+        if (swept.length() == 0) {
+            String value = properties.getProperty(KEYS[key]);
+            return new String[]{value != null ? value.trim() : null};
+        }
+        String[] values = swept.split(",");
+        for (int i = 0; i < values.length; i++) {
+            values[i] = values[i].trim();
+        }
+        return values;
+    }
+
+    private static boolean isRange(String value) {
+        return value.indexOf(':') >= 0;
+    }
+
+    /**
+     * @return every combination of the values
+     */
+    static List<String[]> grid(Properties properties) {
+        List<String[]> configurations = new ArrayList<String[]>();
+        configurations.add(new String[KEYS.length]);
+        for (int key = 0; key < KEYS.length; key++) {
+            List<String[]> expanded = new ArrayList<String[]>();
+            for (String value : values(properties, key)) {
+                if (value != null && isRange(value)) {
+                    throw new IllegalArgumentException("Range " + value + " of " + KEYS[key]
+                            + " in a grid search, only random searches draw values in ranges");
+                }
+                for (String[] configuration : configurations) {
+                    String[] copy = configuration.clone();
+                    copy[key] = value;
+                    expanded.add(copy);
+                }
+            }
+            configurations = expanded;
+        }
+        return configurations;
+    }
+
+    /**
+     * @return trials configurations drawn at random
+     */
+    static List<String[]> random(Properties properties, int trials, Random rand) {
+        List<String[]> configurations = new ArrayList<String[]>();
+        for (int t = 0; t < trials; t++) {
+            String[] configuration = new String[KEYS.length];
+            for (int key = 0; key < KEYS.length; key++) {
+                String[] values = values(properties, key);
+                String value = values[rand.nextInt(values.length)];
+                if (value != null && isRange(value)) {
+                    String[] bounds = value.split(":");
+                    double low = Double.valueOf(bounds[0]), high = Double.valueOf(bounds[1]);
+                    if (low <= 0 || high < low) {
+                        throw new IllegalArgumentException("Range " + value + " of " + KEYS[key]
+                                + " is not 0 < low <= high");
+                    }
+                    value = String.format("%.3g", low * Math.pow(high / low, rand.nextDouble()));
+                }
+                configuration[key] = value;
+            }
+            configurations.add(configuration);
+        }
+        return configurations;
+    }
+
+    /**
+     * Trains the model of a trial, records its precision, wall time and number of epochs
+     */
+    private void train(Trial trial) {
+        WindowModel model = trial.model;
+        trial.model = null;
+        model.verbose = false;
+        model.timeBudgetMillis = 1000L * Integer.valueOf(properties.getProperty("sweepTimeBudget", "0"));
+
+        long start = System.currentTimeMillis();
+        model.initVocab();
+        model.initWeights();
+        trial.precision = model.train(trainExamples.withWindowSize(model.windowSize),
+                holdoutExamples.withWindowSize(model.windowSize));
+        trial.millis = System.currentTimeMillis() - start;
+        trial.epochs = model.trainedEpochs;
+    }
+
+    /**
+     * Trains the trials on numThreads threads, reporting each one as it ends
+     */
+    private void run(List<Trial> trials, int numThreads) {
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        CompletionService<Trial> done = new ExecutorCompletionService<Trial>(pool);
+        try {
+            for (final Trial trial : trials) {
+                done.submit(new Callable<Trial>() {
+                    public Trial call() {
+                        try {
+                            train(trial);
+                        } catch (RuntimeException e) {
+                            // a configuration that cannot be trained does not stop the others
+                            trial.error = e;
+                        } catch (OutOfMemoryError e) {
+                            trial.error = e;
+                        }
+                        return trial;
+                    }
+                });
+            }
+            for (int i = 0; i < trials.size(); i++) {
+                Trial trial = done.take().get();
+                if (trial.error != null) {
+                    System.out.println(String.format("[%d/%d] trial %d failed: %s (%s)",
+                            i + 1, trials.size(), trial.id, trial.error, trial.describe()));
+                } else {
+                    System.out.println(String.format("[%d/%d] trial %d: %.2f%% in %ds, %d epochs (%s)",
+                            i + 1, trials.size(), trial.id, 100 * trial.precision, trial.millis / 1000,
+                            trial.epochs, trial.describe()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Sweep interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Sweep worker failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Prints the trials by decreasing holdout precision, and writes them as tab separated values if filename is set
+     */
+    private static void report(List<Trial> trials, String filename) throws IOException {
+        List<Trial> ranked = new ArrayList<Trial>();
+        for (Trial trial : trials) {
+            if (trial.error == null) {
+                ranked.add(trial);
+            }
+        }
+        Collections.sort(ranked, new Comparator<Trial>() {
+            public int compare(Trial a, Trial b) {
+                if (a.precision != b.precision) {
+                    return Double.compare(b.precision, a.precision);
+                }
+                return a.millis < b.millis ? -1 : a.millis > b.millis ? 1 : 0;
+            }
+        });
+
+        int[] widths = new int[KEYS.length];
+        for (int key = 0; key < KEYS.length; key++) {
+            widths[key] = KEYS[key].length();
+            for (Trial trial : ranked) {
+                widths[key] = Math.max(widths[key], trial.value(key).length());
+            }
+        }
+        StringBuilder header = new StringBuilder("rank  trial  precision   time (s)  epochs");
+        for (int key = 0; key < KEYS.length; key++) {
+            header.append("  ").append(String.format("%-" + widths[key] + "s", KEYS[key]));
+        }
+        System.out.println(header.toString().trim());
+        for (int i = 0; i < ranked.size(); i++) {
+            Trial trial = ranked.get(i);
+            StringBuilder line = new StringBuilder(String.format("%4d  %5d  %8.2f%%  %9.1f  %6d",
+                    i + 1, trial.id, 100 * trial.precision, trial.millis / 1000., trial.epochs));
+            for (int key = 0; key < KEYS.length; key++) {
+                line.append("  ").append(String.format("%-" + widths[key] + "s", trial.value(key)));
+            }
+            System.out.println(line.toString().replaceAll("\\s+$", ""));
+        }
+
+        if (filename.length() == 0) {
+            return;
+        }
+        PrintWriter out = new PrintWriter(new FileWriter(filename));
+        try {
+            out.print("rank\ttrial\tprecision\tmillis\tepochs");
+            for (String key : KEYS) {
+                out.print("\t" + key);
+            }
+            out.println();
+            for (int i = 0; i < ranked.size(); i++) {
+                Trial trial = ranked.get(i);
+                out.print(String.format("%d\t%d\t%.6f\t%d\t%d", i + 1, trial.id, trial.precision, trial.millis,
+                        trial.epochs));
+                for (int key = 0; key < KEYS.length; key++) {
+                    out.print("\t" + trial.value(key));
+                }
+                out.println();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Runs the sweep given by the properties
+     * @param properties
+     * @throws IOException
+     */
+    public static void run(Properties properties) throws IOException {
+        String mode = properties.getProperty("sweep", "grid").trim();
+        List<String[]> configurations;
+        if (mode.equals("grid")) {
+            configurations = grid(properties);
+        } else if (mode.equals("random")) {
+            String seed = properties.getProperty("sweepSeed", "").trim();
+            configurations = random(properties, Integer.valueOf(properties.getProperty("sweepTrials", "10")),
+                    seed.length() > 0 ? new Random(Long.valueOf(seed)) : new Random());
+        } else {
+            throw new IllegalArgumentException("Unknown sweep " + mode + ", grid or random");
+        }
+        int numThreads = Integer.valueOf(properties.getProperty("sweepThreads", "1"));
+        System.out.println(String.format("-- %s sweep of %d configurations, %d at a time --",
+                mode, configurations.size(), numThreads));
+
+        // the models are built first, their weights are only allocated when they are trained
+        Vocabulary vocab = FeatureFactory.initializeVocab(properties.getProperty("vocabFile", "data/vocab.txt"));
+        List<String> labels = Arrays.asList("O", "ORG", "PER", "LOC", "MISC");
+        List<Trial> trials = new ArrayList<Trial>();
+        int maxWindowSize = 1;
+        for (String[] configuration : configurations) {
+            Trial trial = new Trial(trials.size(), configuration);
+            trial.model = NER.createModel(trial.properties(properties), vocab, labels);
+            maxWindowSize = Math.max(maxWindowSize, trial.model.windowSize);
+            trials.add(trial);
+        }
+        Corpus trainExamples = CorpusReader.readCorpus(properties.getProperty("trainFile"), vocab, labels,
+                maxWindowSize, false);
+        Corpus holdoutExamples = CorpusReader.readCorpus(properties.getProperty("holdoutFile"), vocab, labels,
+                maxWindowSize, false);
+
+        long start = System.currentTimeMillis();
+        new Sweep(properties, trainExamples, holdoutExamples).run(trials, numThreads);
+        System.out.println(String.format("-- Results (%ds) --", (System.currentTimeMillis() - start) / 1000));
+        report(trials, properties.getProperty("sweepResults", "").trim());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("USAGE: java -cp classes cs224n.deep.Sweep config.properties");
+            return;
+        }
+
+        InputStream inputStream = new FileInputStream(args[0]);
+        Properties properties = new Properties();
+        properties.load(inputStream);
+        Utils.fastMath = Boolean.valueOf(properties.getProperty("fastMath", "false"));
+        run(properties);
+    }
+}
@@ -0,0 +1,222 @@
+package cs224n.deep;
+
+import org.ejml.data.DenseMatrix64F;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Embeddable inference engine: tags raw sentences with a trained WindowModel.
+ *
+ * Text is tokenized as FeatureFactory.read does (whitespace separated tokens, lowercased, a period ends the sentence)
+ * and every sentence is padded with start and end tokens, as in Corpus. Unlike the training windows, every token
+ * gets a label, periods being labeled O.
+ *
+ * The weights are only read, so a tagger can be shared by any number of threads, each one getting its own workspace.
+ * A tagger can also run a QuantizedModel, window by window.
+ */
+public class Tagger {
+
+    public static final String PERIOD = ".";
+
+    private final WindowModel model;
+    private final DenseMatrix64F U, W;
+    private final Embeddings L;
+    // Int8 model, used instead of the model when not null
+    private final QuantizedModel quantized;
+    private final Vocabulary vocab;
+    private final List<String> labels;
+    private final int windowSize, half, batchSize;
+    private final int startIndex, endIndex;
+    private final String periodLabel;
+    // First layer lookups, null to multiply by W
+    private final ProjectionCache cache;
+
+    // Buffers of the calling thread
+    private final ThreadLocal<Workspace> workspaces = new ThreadLocal<Workspace>() {
+        protected Workspace initialValue() {
+            return new Workspace(model.windowSize, model.wordSize, model.hiddenSize, model.K, batchSize);
+        }
+    };
+
+    /**
+     * @param model: trained model, it must not be trained any more while the tagger is used
+     * @param batchSize: number of windows per forward pass
+     */
+    public Tagger(WindowModel model, int batchSize) {
+        this.model = model;
+        this.U = model.U.getMatrix();
+        this.W = model.W.getMatrix();
+        this.L = model.L;
+        this.quantized = null;
+        this.vocab = model.vocab;
+        this.labels = model.labels;
+        this.windowSize = model.windowSize;
+        this.half = windowSize / 2;
+        this.batchSize = batchSize;
+        this.startIndex = vocab.indexOrUnknown(FeatureFactory.START_TOKEN);
+        this.endIndex = vocab.indexOrUnknown(FeatureFactory.END_TOKEN);
+        this.periodLabel = labels.contains("O") ? "O" : labels.get(0);
+        this.cache = model.getProjectionCache();
+    }
+
+    /**
+     * @param quantized: int8 model
+     * @param vocab: vocabulary the model was exported with
+     * @throws IOException if the model does not match the vocabulary
+     */
+    public Tagger(QuantizedModel quantized, Vocabulary vocab) throws IOException {
+        quantized.check(vocab);
+        this.model = null;
+        this.U = null;
+        this.W = null;
+        this.L = null;
+        this.quantized = quantized;
+        this.vocab = vocab;
+        this.labels = quantized.labels;
+        this.windowSize = quantized.windowSize;
+        this.half = windowSize / 2;
+        this.batchSize = 1;
+        this.startIndex = vocab.indexOrUnknown(FeatureFactory.START_TOKEN);
+        this.endIndex = vocab.indexOrUnknown(FeatureFactory.END_TOKEN);
+        this.periodLabel = labels.contains("O") ? "O" : labels.get(0);
+        this.cache = null;
+    }
+
+    /**
+     * Loads a model from a checkpoint written by WindowModel.dumpCheckpoint, or a quantized model written by
+     * QuantizedModel.write (batchSize and projectionCacheWords are then ignored)
+     * @param checkpointFile
+     * @param vocabFile: vocabulary the model was trained with
+     * @param batchSize: number of windows per forward pass
+     * @param projectionCacheWords: number of words whose first layer contributions are precomputed, 0 to disable
+     * @return
+     * @throws IOException if the checkpoint does not match the vocabulary
+     */
+    public static Tagger load(String checkpointFile, String vocabFile, int batchSize, int projectionCacheWords)
+            throws IOException {
+        Vocabulary vocab = FeatureFactory.initializeVocab(vocabFile);
+        if (QuantizedModel.isQuantized(checkpointFile)) {
+            return new Tagger(QuantizedModel.read(checkpointFile), vocab);
+        }
+        WindowModel model = Checkpoint.open(checkpointFile).newModel(vocab);
+        model.projectionCacheWords = projectionCacheWords;
+        return new Tagger(model, batchSize);
+    }
+
+    public List<String> labels() {
+        return labels;
+    }
+
+    /**
+     * Splits text in tokens on whitespace
+     * @param text
+     * @return
+     */
+    public static String[] tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        int from = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean space = i == text.length() || Character.isWhitespace(text.charAt(i));
+            if (space && from >= 0) {
+                tokens.add(text.substring(from, i));
+                from = -1;
+            } else if (!space && from < 0) {
+                from = i;
+            }
+        }
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * @param text: whitespace separated tokens
+     * @return label of every token
+     */
+    public String[] tag(String text) {
+        return tag(tokenize(text));
+    }
+
+    /**
+     * @param tokens
+     * @return label of every token
+     */
+    public String[] tag(String[] tokens) {
+        String[] predicted = new String[tokens.length];
+
+        // Padded word indices and offset of the window of each token (-1 for periods)
+        int[] words = new int[tokens.length + 2 * half * (numPeriods(tokens) + 1)];
+        int[] windows = new int[tokens.length];
+        int position = 0;
+        for (int i = 0; i < half; i++) {
+            words[position++] = startIndex;
+        }
+        for (int t = 0; t < tokens.length; t++) {
+            String word = tokens[t].toLowerCase();
+            if (word.equals(PERIOD)) {
+                windows[t] = -1;
+                for (int i = 0; i < half; i++) {
+                    words[position++] = endIndex;
+                }
+                for (int i = 0; i < half; i++) {
+                    words[position++] = startIndex;
+                }
+            } else {
+                windows[t] = position - half;
+                words[position++] = vocab.indexOrUnknown(word);
+            }
+        }
+        for (int i = 0; i < half; i++) {
+            words[position++] = endIndex;
+        }
+
+        if (quantized != null) {
+            for (int t = 0; t < tokens.length; t++) {
+                predicted[t] = windows[t] < 0 ? periodLabel : labels.get(quantized.predict(words, windows[t]));
+            }
+            return predicted;
+        }
+
+        // Forward passes on batches of windows
+        Workspace ws = workspaces.get();
+        int t = 0;
+        while (t < tokens.length) {
+            int n = 0;
+            int first = t;
+            for (; t < tokens.length && n < ws.batchSize; t++) {
+                if (windows[t] < 0) {
+                    predicted[t] = periodLabel;
+                } else {
+                    System.arraycopy(words, windows[t], ws.index, n * windowSize, windowSize);
+                    n++;
+                }
+            }
+            if (n == 0) {
+                continue;
+            }
+            ws.setBatch(n);
+            if (cache != null) {
+                ws.forward(cache, U, 1.);
+            } else {
+                ws.loadX(L);
+                ws.forward(U, 1., W, 1., false);
+            }
+            for (int b = 0; first < t; first++) {
+                if (windows[first] >= 0) {
+                    predicted[first] = labels.get(ws.predicted(b++));
+                }
+            }
+        }
+        return predicted;
+    }
+
+    private static int numPeriods(String[] tokens) {
+        int count = 0;
+        for (String token : tokens) {
+            if (token.equals(PERIOD)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,218 @@
+package cs224n.deep;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.*;
+
+/**
+ * Load generator for the tagger: a number of clients send the sentences of a data file in a loop for a fixed time,
+ * each one waiting for its reply before sending the next sentence, and the latency of every request is recorded.
+ *
+ * Without serverHost in the properties the clients call an in-process Tagger, otherwise they connect to a
+ * TaggerServer.
+ *
+ * USAGE: java -cp classes cs224n.deep.TaggerBenchmark config.properties
+ * with benchmarkFile, benchmarkClients, benchmarkSeconds and serverHost, serverPort or loadModel, vocabFile.
+ */
+public class TaggerBenchmark {
+
+    /**
+     * Sends requests and records their latencies
+     */
+    private static abstract class Client implements Callable<long[]> {
+        final List<String> sentences;
+        final long endTime;
+        final int first;
+        long tokens;
+
+        Client(List<String> sentences, long endTime, int first) {
+            this.sentences = sentences;
+            this.endTime = endTime;
+            this.first = first;
+        }
+
+        abstract int request(String sentence) throws IOException;
+
+        public long[] call() throws IOException {
+            long[] latencies = new long[1024];
+            int count = 0;
+            for (int i = first; System.nanoTime() < endTime; i = (i + 1) % sentences.size()) {
+                long start = System.nanoTime();
+                tokens += request(sentences.get(i));
+                if (count == latencies.length) {
+                    latencies = Arrays.copyOf(latencies, 2 * count);
+                }
+                latencies[count++] = System.nanoTime() - start;
+            }
+            close();
+            return Arrays.copyOf(latencies, count);
+        }
+
+        void close() throws IOException {
+        }
+    }
+
+    private static class LocalClient extends Client {
+        final Tagger tagger;
+
+        LocalClient(Tagger tagger, List<String> sentences, long endTime, int first) {
+            super(sentences, endTime, first);
+            this.tagger = tagger;
+        }
+
+        int request(String sentence) {
+            return tagger.tag(sentence).length;
+        }
+    }
+
+    private static class RemoteClient extends Client {
+        final Socket socket;
+        final BufferedReader in;
+        final Writer out;
+
+        RemoteClient(String host, int port, List<String> sentences, long endTime, int first) throws IOException {
+            super(sentences, endTime, first);
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+        }
+
+        int request(String sentence) throws IOException {
+            out.write(sentence);
+            out.write('\n');
+            out.flush();
+            String reply = in.readLine();
+            if (reply == null) {
+                throw new IOException("Connection closed by the server");
+            }
+            return Tagger.tokenize(reply).length;
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * @return sentences of a data file, each one ending with its period
+     */
+    static List<String> readSentences(String filename) throws IOException {
+        List<String> sentences = new ArrayList<String>();
+        CorpusReader in = new CorpusReader(filename);
+        StringBuilder sentence = new StringBuilder();
+        while (in.next()) {
+            if (sentence.length() > 0) {
+                sentence.append(' ');
+            }
+            sentence.append(in.word());
+            if (in.isPeriod()) {
+                sentences.add(sentence.toString());
+                sentence.setLength(0);
+            }
+        }
+        if (sentence.length() > 0) {
+            sentences.add(sentence.toString());
+        }
+        return sentences;
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1000.;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("USAGE: java -cp classes cs224n.deep.TaggerBenchmark config.properties");
+            return;
+        }
+
+        InputStream inputStream = new FileInputStream(args[0]);
+        Properties properties = new Properties();
+        properties.load(inputStream);
+
+        List<String> sentences = readSentences(properties.getProperty("benchmarkFile",
+                properties.getProperty("holdoutFile", "data/dev")));
+        int numClients = Integer.valueOf(properties.getProperty("benchmarkClients", "4"));
+        int seconds = Integer.valueOf(properties.getProperty("benchmarkSeconds", "10"));
+        String host = properties.getProperty("serverHost");
+        int port = Integer.valueOf(properties.getProperty("serverPort", "4224"));
+
+        Tagger tagger = null;
+        if (host == null) {
+            Utils.fastMath = Boolean.valueOf(properties.getProperty("fastMath", "false"));
+            tagger = Tagger.load(properties.getProperty("loadModel", "data/saved-model.bin"),
+                    properties.getProperty("vocabFile", "data/vocab.txt"),
+                    Integer.valueOf(properties.getProperty("tagBatchSize", "16")),
+                    Integer.valueOf(properties.getProperty("projectionCacheWords", "0")));
+        }
+
+        // warm up the JIT before measuring
+        long endTime = System.nanoTime() + 2000000000L;
+        List<Client> clients = new ArrayList<Client>();
+        for (int pass = 0; pass < 2; pass++) {
+            clients.clear();
+            for (int c = 0; c < numClients; c++) {
+                int first = c * sentences.size() / numClients;
+                clients.add(host == null
+                        ? new LocalClient(tagger, sentences, endTime, first)
+                        : new RemoteClient(host, port, sentences, endTime, first));
+            }
+            if (pass == 0) {
+                runClients(clients);
+                endTime = System.nanoTime() + seconds * 1000000000L;
+            }
+        }
+
+        long start = System.nanoTime();
+        List<long[]> results = runClients(clients);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        int numRequests = 0;
+        long numTokens = 0;
+        for (int c = 0; c < numClients; c++) {
+            numRequests += results.get(c).length;
+            numTokens += clients.get(c).tokens;
+        }
+        long[] latencies = new long[numRequests];
+        int offset = 0;
+        for (long[] result : results) {
+            System.arraycopy(result, 0, latencies, offset, result.length);
+            offset += result.length;
+        }
+        Arrays.sort(latencies);
+
+        double tokensPerRequest = (double) numTokens / Math.max(numRequests, 1);
+        System.out.println(String.format("%s, %d clients, %d requests, %d tokens in %.1fs",
+                host == null ? "in-process" : host + ":" + port, numClients, numRequests, numTokens, elapsed));
+        System.out.println(String.format("Throughput: %.0f requests/s, %.0f tokens/s",
+                numRequests / elapsed, numTokens / elapsed));
+        if (numRequests > 0) {
+            System.out.println(String.format(
+                    "Latency per request (us): p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+                    percentile(latencies, .5), percentile(latencies, .9), percentile(latencies, .99),
+                    latencies[numRequests - 1] / 1000.));
+            System.out.println(String.format(
+                    "Latency per token (us, %.1f tokens per request): p50 %.2f, p99 %.2f",
+                    tokensPerRequest, percentile(latencies, .5) / tokensPerRequest,
+                    percentile(latencies, .99) / tokensPerRequest));
+        }
+    }
+
+    private static List<long[]> runClients(List<Client> clients) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(clients.size());
+        try {
+            List<long[]> results = new ArrayList<long[]>();
+            for (Future<long[]> future : pool.invokeAll(clients)) {
+                results.add(future.get());
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package cs224n.deep;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Tags labeled sentences and writes "word\tgold label\tpredicted label" lines, as WindowModel.test, in a pipeline of
+ * threads connected by queues:
+ * - a reader takes the sentences (read and turned into windows one at a time by CorpusReader.sentences) and groups
+ *   their windows in chunks,
+ * - numThreads workers predict the labels of the chunks, each one with its own workspace, and format their lines,
+ * - a writer appends the lines of the chunks in input order to a large file buffer.
+ * At most maxChunks chunks are in flight and CorpusReader reads the file through a bounded buffer, so memory does not
+ * depend on the size of the input.
+ */
+public class TaggerPipeline {
+
+    private static final int OUTPUT_BUFFER = 1 << 20;
+
+    /**
+     * Windows from to (excluded) of a sentence
+     */
+    private static class Segment {
+        final Corpus corpus;
+        final int from, to;
+
+        Segment(Corpus corpus, int from, int to) {
+            this.corpus = corpus;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static class Chunk {
+        final long sequence;
+        final List<Segment> segments = new ArrayList<Segment>();
+        int size;
+        OutputBuffer lines;
+
+        Chunk(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    // Sent by the reader to every worker, then by every worker to the writer
+    private static final Chunk END = new Chunk(-1);
+
+    private final WindowModel model;
+    private final int numThreads, batchSize, chunkSize, maxChunks;
+
+    /**
+     * @param model: trained model, it must not be trained any more while the pipeline runs
+     * @param numThreads: number of workers
+     * @param batchSize: number of windows per forward pass
+     */
+    public TaggerPipeline(WindowModel model, int numThreads, int batchSize) {
+        this(model, numThreads, batchSize, 4096, 4 * numThreads);
+    }
+
+    /**
+     * @param model
+     * @param numThreads
+     * @param batchSize
+     * @param chunkSize: number of windows per chunk
+     * @param maxChunks: number of chunks in flight
+     */
+    public TaggerPipeline(WindowModel model, int numThreads, int batchSize, int chunkSize, int maxChunks) {
+        this.model = model;
+        this.numThreads = numThreads;
+        this.batchSize = batchSize;
+        this.chunkSize = chunkSize;
+        this.maxChunks = maxChunks;
+    }
+
+    /**
+     * Tags the sentences, the text of the corpora must have been kept. The sentences are closed at the end if they are
+     * Closeable, as the ones of CorpusReader.sentences.
+     * @param sentences
+     * @param outputFile
+     * @throws IOException
+     */
+    public void run(final Iterator<Corpus> sentences, final String outputFile) throws IOException {
+        final BlockingQueue<Chunk> input = new ArrayBlockingQueue<Chunk>(maxChunks + numThreads);
+        final BlockingQueue<Chunk> output = new LinkedBlockingQueue<Chunk>();
+        final Semaphore inFlight = new Semaphore(maxChunks);
+        final ProjectionCache cache = model.getProjectionCache();
+
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads + 2);
+        CompletionService<Void> stages = new ExecutorCompletionService<Void>(pool);
+        try {
+            stages.submit(new Callable<Void>() {
+                public Void call() throws InterruptedException {
+                    read(sentences, input, inFlight);
+                    return null;
+                }
+            });
+            for (int t = 0; t < numThreads; t++) {
+                stages.submit(new Callable<Void>() {
+                    public Void call() throws IOException, InterruptedException {
+                        Workspace ws = new Workspace(model.windowSize, model.wordSize, model.hiddenSize, model.K,
+                                batchSize);
+                        for (Chunk chunk = input.take(); chunk != END; chunk = input.take()) {
+                            predict(chunk, ws, cache);
+                            output.put(chunk);
+                        }
+                        output.put(END);
+                        return null;
+                    }
+                });
+            }
+            stages.submit(new Callable<Void>() {
+                public Void call() throws IOException, InterruptedException {
+                    write(output, inFlight, outputFile);
+                    return null;
+                }
+            });
+
+            for (int i = 0; i < numThreads + 2; i++) {
+                stages.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Tagging interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            // the sentence iterator wraps the read errors
+            if (cause instanceof IllegalStateException && cause.getCause() instanceof IOException) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new RuntimeException("Tagging stage failed", cause);
+        } finally {
+            // stops the other stages if one failed
+            pool.shutdownNow();
+            if (sentences instanceof Closeable) {
+                ((Closeable) sentences).close();
+            }
+        }
+    }
+
+    private void read(Iterator<Corpus> sentences, BlockingQueue<Chunk> input, Semaphore inFlight)
+            throws InterruptedException {
+        long sequence = 0;
+        Chunk chunk = new Chunk(sequence++);
+        while (sentences.hasNext()) {
+            Corpus corpus = sentences.next();
+            for (int from = 0; from < corpus.size(); ) {
+                int to = Math.min(corpus.size(), from + chunkSize - chunk.size);
+                chunk.segments.add(new Segment(corpus, from, to));
+                chunk.size += to - from;
+                from = to;
+                if (chunk.size == chunkSize) {
+                    inFlight.acquire();
+                    input.put(chunk);
+                    chunk = new Chunk(sequence++);
+                }
+            }
+        }
+        if (chunk.size > 0) {
+            inFlight.acquire();
+            input.put(chunk);
+        }
+        for (int t = 0; t < numThreads; t++) {
+            input.put(END);
+        }
+    }
+
+    private void predict(Chunk chunk, Workspace ws, ProjectionCache cache) throws IOException {
+        chunk.lines = new OutputBuffer(32 * chunk.size);
+        Corpus[] batchCorpus = new Corpus[ws.batchSize];
+        int[] batchWindow = new int[ws.batchSize];
+        int n = 0;
+        for (Segment segment : chunk.segments) {
+            for (int w = segment.from; w < segment.to; w++) {
+                System.arraycopy(segment.corpus.words, segment.corpus.windows[w], ws.index, n * model.windowSize,
+                        model.windowSize);
+                batchCorpus[n] = segment.corpus;
+                batchWindow[n] = w;
+                if (++n == ws.batchSize) {
+                    predictBatch(n, batchCorpus, batchWindow, ws, cache, chunk.lines);
+                    n = 0;
+                }
+            }
+        }
+        if (n > 0) {
+            predictBatch(n, batchCorpus, batchWindow, ws, cache, chunk.lines);
+        }
+        chunk.segments.clear();
+    }
+
+    private void predictBatch(int n, Corpus[] batchCorpus, int[] batchWindow, Workspace ws, ProjectionCache cache,
+                              OutputBuffer lines) throws IOException {
+        ws.setBatch(n);
+        if (cache != null) {
+            ws.forward(cache, model.U.getMatrix(), 1.);
+        } else {
+            ws.loadX(model.L);
+            ws.forward(model.U.getMatrix(), 1., model.W.getMatrix(), 1., false);
+        }
+        for (int b = 0; b < n; b++) {
+            Corpus corpus = batchCorpus[b];
+            int middleWord = corpus.center(batchWindow[b]);
+            lines.append(corpus.text[middleWord]).append('\t')
+                    .append(model.labels.get(corpus.labels[middleWord])).append('\t')
+                    .append(model.labels.get(ws.predicted(b))).append('\n');
+        }
+    }
+
+    private void write(BlockingQueue<Chunk> output, Semaphore inFlight, String outputFile)
+            throws IOException, InterruptedException {
+        OutputBuffer out = new OutputBuffer(outputFile, OUTPUT_BUFFER);
+        try {
+            // Chunks done before the previous ones, at most maxChunks
+            Map<Long, Chunk> pending = new HashMap<Long, Chunk>();
+            long next = 0;
+            int ended = 0;
+            while (ended < numThreads) {
+                Chunk chunk = output.take();
+                if (chunk == END) {
+                    ended++;
+                    continue;
+                }
+                pending.put(chunk.sequence, chunk);
+                for (chunk = pending.remove(next); chunk != null; chunk = pending.remove(next)) {
+                    chunk.lines.appendTo(out);
+                    inFlight.release();
+                    next++;
+                }
+            }
+            if (!pending.isEmpty()) {
+                throw new IllegalStateException("Chunk " + next + " was never tagged");
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
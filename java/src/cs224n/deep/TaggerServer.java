@@ -0,0 +1,128 @@
+package cs224n.deep;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local tagging server with a line protocol: every line sent by a client is a raw sentence, the reply is one line
+ * with the label of each of its tokens, tab separated. A client can send any number of lines on a connection.
+ *
+ * The model (a checkpoint or a quantized model) is loaded once, connections are served by a fixed pool of threads
+ * sharing the same Tagger.
+ *
+ * USAGE: java -cp classes cs224n.deep.TaggerServer config.properties
+ * with loadModel, vocabFile, serverPort, serverThreads, tagBatchSize, projectionCacheWords and fastMath in the
+ * properties.
+ */
+public class TaggerServer {
+
+    private final Tagger tagger;
+    private final ServerSocket serverSocket;
+    private final ExecutorService pool;
+
+    /**
+     * @param tagger
+     * @param port: 0 for any free port
+     * @param numThreads: number of connections served at the same time
+     * @throws IOException
+     */
+    public TaggerServer(Tagger tagger, int port, int numThreads) throws IOException {
+        this.tagger = tagger;
+        this.serverSocket = new ServerSocket(port);
+        this.pool = Executors.newFixedThreadPool(numThreads);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections until the server is closed
+     */
+    public void serve() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Accept failed: " + e.getMessage());
+                }
+                continue;
+            }
+            pool.execute(new Runnable() {
+                public void run() {
+                    handle(socket);
+                }
+            });
+        }
+    }
+
+    private void handle(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            StringBuilder reply = new StringBuilder();
+            for (String line = in.readLine(); line != null; line = in.readLine()) {
+                String[] labels = tagger.tag(line);
+                reply.setLength(0);
+                for (int i = 0; i < labels.length; i++) {
+                    if (i > 0) {
+                        reply.append('\t');
+                    }
+                    reply.append(labels[i]);
+                }
+                reply.append('\n');
+                out.write(reply.toString());
+                // replies to pipelined requests are sent together
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Connection failed: " + e.getMessage());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already closed
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        serverSocket.close();
+        pool.shutdown();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.out.println("USAGE: java -cp classes cs224n.deep.TaggerServer config.properties");
+            return;
+        }
+
+        InputStream inputStream = new FileInputStream(args[0]);
+        Properties properties = new Properties();
+        properties.load(inputStream);
+
+        String modelFile = properties.getProperty("loadModel", "data/saved-model.bin");
+        String vocabFile = properties.getProperty("vocabFile", "data/vocab.txt");
+        int port = Integer.valueOf(properties.getProperty("serverPort", "4224"));
+        int numThreads = Integer.valueOf(properties.getProperty("serverThreads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        int batchSize = Integer.valueOf(properties.getProperty("tagBatchSize", "16"));
+        int cacheWords = Integer.valueOf(properties.getProperty("projectionCacheWords", "0"));
+        Utils.fastMath = Boolean.valueOf(properties.getProperty("fastMath", "false"));
+
+        Tagger tagger = Tagger.load(modelFile, vocabFile, batchSize, cacheWords);
+        TaggerServer server = new TaggerServer(tagger, port, numThreads);
+        System.out.println(String.format("-- Tagging on port %d with %d threads --", server.getPort(), numThreads));
+        server.serve();
+    }
+}
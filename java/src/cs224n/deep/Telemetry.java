@@ -0,0 +1,300 @@
+package cs224n.deep;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Training telemetry: examples, time spent in each phase of an SGD step, gradient norms and allocations, plus the
+ * wall time and evaluation of every epoch. The metrics are sent to reporters periodically and at the end of every
+ * epoch.
+ *
+ * Each training worker records in its own Counters (held by its Workspace) without any synchronization, the
+ * counters are only summed when a report is made, so values reported during an epoch are approximate.
+ * A model without telemetry has no counters, disabled telemetry costs a null check per mini-batch.
+ */
+public class Telemetry {
+
+    /**
+     * Counters of one worker
+     */
+    public static class Counters {
+        long examples, batches;
+        long forwardNanos, backwardNanos, updateNanos;
+        // Sums of the per-example cross-entropies and gradient norms
+        double loss;
+        double gradNormU, gradNormW, gradNormL;
+        long allocatedBytes;
+        // Number of steps by power of two of their duration in nanoseconds
+        final long[] stepHistogram = new long[64];
+
+        /**
+         * Records a step of n examples, from its start, end of the forward pass, end of the backward pass and end
+         */
+        void record(int n, long start, long forwardEnd, long backwardEnd, long end) {
+            examples += n;
+            batches++;
+            forwardNanos += forwardEnd - start;
+            backwardNanos += backwardEnd - forwardEnd;
+            updateNanos += end - backwardEnd;
+            stepHistogram[63 - Long.numberOfLeadingZeros(Math.max(end - start, 1))]++;
+        }
+
+        /**
+         * Adds the cross-entropy and the gradient norms of each example of the current batch of the workspace.
+         * The U and W gradients of an example are outer products, their norm is the product of the norms.
+         */
+        void addGradientNorms(Workspace ws) {
+            for (int b = 0; b < ws.n; b++) {
+                loss += ws.loss[b];
+                double e = 0, h = 0, delta = 0, x = 0, xgrad = 0;
+                for (int k = 0; k < ws.K; k++) {
+                    e += square(ws.E.data[b * ws.K + k]);
+                }
+                for (int i = 0; i <= ws.hiddenSize; i++) {
+                    h += square(ws.H.data[b * (ws.hiddenSize + 1) + i]);
+                }
+                for (int i = 0; i < ws.hiddenSize; i++) {
+                    delta += square(ws.Delta.data[b * ws.hiddenSize + i]);
+                }
+                int inputSize = ws.X.numCols;
+                for (int j = 0; j < inputSize; j++) {
+                    x += square(ws.X.data[b * inputSize + j]);
+                    // only the kept units of the words are written back in L
+                    if (j < inputSize - 1 && ws.Xkept.data[b * inputSize + j] != 0) {
+                        xgrad += square(ws.Xgrad.data[b * inputSize + j]);
+                    }
+                }
+                gradNormU += Math.sqrt(e * h);
+                gradNormW += Math.sqrt(delta * x);
+                gradNormL += Math.sqrt(xgrad);
+            }
+        }
+
+        /**
+         * Adds the bytes allocated by the current thread since start (as given by threadAllocatedBytes)
+         */
+        void addAllocatedSince(long start) {
+            if (start >= 0) {
+                allocatedBytes += threadAllocatedBytes() - start;
+            }
+        }
+
+        private static double square(double x) {
+            return x * x;
+        }
+    }
+
+    private final List<MetricsReporter> reporters;
+    private final long periodMillis;
+    private final List<Counters> counters = new ArrayList<Counters>();
+    private ScheduledExecutorService scheduler;
+
+    // Epoch metrics
+    private int epoch = -1;
+    private long epochMillis, evalMillis;
+    private double precision;
+
+    // Previous report, for the examples per second
+    private long lastExamples;
+    private long lastReportNanos;
+
+    /**
+     * @param periodSeconds: time between two periodic reports, 0 to report only at the end of the epochs
+     * @param reporters
+     */
+    public Telemetry(int periodSeconds, List<MetricsReporter> reporters) {
+        this.periodMillis = periodSeconds * 1000L;
+        this.reporters = reporters;
+    }
+
+    /**
+     * @return new counters for a worker, included in the reports until stop
+     */
+    public synchronized Counters newCounters() {
+        Counters c = new Counters();
+        counters.add(c);
+        return c;
+    }
+
+    /**
+     * Starts the periodic reports
+     */
+    public synchronized void start() {
+        lastReportNanos = System.nanoTime();
+        if (periodMillis > 0 && scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "telemetry");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    report("progress");
+                }
+            }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Records the end of an epoch and reports
+     * @param epoch
+     * @param epochMillis: wall time of the epoch, evaluation included
+     * @param evalMillis: time spent evaluating the holdout set
+     * @param precision: holdout precision
+     */
+    public void endEpoch(int epoch, long epochMillis, long evalMillis, double precision) {
+        synchronized (this) {
+            this.epoch = epoch;
+            this.epochMillis = epochMillis;
+            this.evalMillis = evalMillis;
+            this.precision = precision;
+        }
+        report("epoch");
+    }
+
+    /**
+     * Stops the periodic reports and detaches the counters of the training, so that the reports of the next one start
+     * from zero. The reporters stay open for it.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+            scheduler = null;
+        }
+        counters.clear();
+        epoch = -1;
+        epochMillis = 0;
+        evalMillis = 0;
+        precision = 0;
+        lastExamples = 0;
+    }
+
+    /**
+     * Stops the periodic reports and closes the reporters, once the telemetry is not used any more
+     */
+    public synchronized void close() {
+        stop();
+        for (MetricsReporter reporter : reporters) {
+            reporter.close();
+        }
+    }
+
+    private void report(String event) {
+        Map<String, Object> metrics = snapshot(event);
+        for (MetricsReporter reporter : reporters) {
+            try {
+                reporter.report(metrics);
+            } catch (RuntimeException e) {
+                System.err.println("Telemetry report failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * @param event: what triggered the snapshot
+     * @return current metrics, summed over the workers
+     */
+    public synchronized Map<String, Object> snapshot(String event) {
+        Counters total = new Counters();
+        for (Counters c : counters) {
+            total.examples += c.examples;
+            total.batches += c.batches;
+            total.forwardNanos += c.forwardNanos;
+            total.backwardNanos += c.backwardNanos;
+            total.updateNanos += c.updateNanos;
+            total.loss += c.loss;
+            total.gradNormU += c.gradNormU;
+            total.gradNormW += c.gradNormW;
+            total.gradNormL += c.gradNormL;
+            total.allocatedBytes += c.allocatedBytes;
+            for (int i = 0; i < total.stepHistogram.length; i++) {
+                total.stepHistogram[i] += c.stepHistogram[i];
+            }
+        }
+
+        long now = System.nanoTime();
+        double examplesPerSecond = (total.examples - lastExamples) * 1e9 / Math.max(now - lastReportNanos, 1);
+        lastExamples = total.examples;
+        lastReportNanos = now;
+        double examples = Math.max(total.examples, 1);
+
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("time", System.currentTimeMillis());
+        metrics.put("event", event);
+        metrics.put("epoch", epoch);
+        metrics.put("examples", total.examples);
+        metrics.put("batches", total.batches);
+        metrics.put("examplesPerSecond", examplesPerSecond);
+        metrics.put("forwardNanosPerExample", total.forwardNanos / examples);
+        metrics.put("backwardNanosPerExample", total.backwardNanos / examples);
+        metrics.put("updateNanosPerExample", total.updateNanos / examples);
+        metrics.put("stepNanosP50", percentile(total.stepHistogram, total.batches, .5));
+        metrics.put("stepNanosP99", percentile(total.stepHistogram, total.batches, .99));
+        metrics.put("trainLoss", total.loss / examples);
+        metrics.put("gradNormU", total.gradNormU / examples);
+        metrics.put("gradNormW", total.gradNormW / examples);
+        metrics.put("gradNormL", total.gradNormL / examples);
+        metrics.put("allocatedBytesPerExample", total.allocatedBytes / examples);
+        metrics.put("epochMillis", epochMillis);
+        metrics.put("evalMillis", evalMillis);
+        metrics.put("holdoutPrecision", precision);
+        return metrics;
+    }
+
+    /**
+     * @return upper bound of the bucket holding the p-th percentile
+     */
+    private static long percentile(long[] histogram, long count, double p) {
+        long rank = (long) Math.ceil(p * count);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank && seen > 0) {
+                return i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, -1 if the JVM does not tell
+     */
+    public static long threadAllocatedBytes() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            // com.sun.management.ThreadMXBean, only on HotSpot
+            Method method = ALLOCATED_BYTES;
+            if (method == null) {
+                return -1;
+            }
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static final Method ALLOCATED_BYTES = allocatedBytesMethod();
+
+    private static Method allocatedBytesMethod() {
+        try {
+            Class<?> hotspot = Class.forName("com.sun.management.ThreadMXBean");
+            if (!hotspot.isInstance(ManagementFactory.getThreadMXBean())) {
+                return null;
+            }
+            return hotspot.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package cs224n.deep;
 
+import org.ejml.data.D1Matrix64F;
 import org.ejml.simple.SimpleMatrix;
 
 import java.util.Arrays;
@@ -11,6 +12,35 @@ import java.util.Random;
  */
 public class Utils {
 
+    /**
+     * Use fastTanh instead of Math.tanh in the kernels and in the forward pass, and draw the dropout masks two units
+     * per random number. Off by default, the results are then exactly the ones of the scalar library functions.
+     * Set it before training or predicting.
+     */
+    public static boolean fastMath = false;
+
+    /**
+     * tanh(x) = (e^2x - 1) / (e^2x + 1), saturated to +-1 beyond 20. Math.exp is an intrinsic of the JIT while
+     * Math.tanh is not, this is several times faster with an absolute error below 1e-15.
+     */
+    public static double fastTanh(double x) {
+        if (x > 20) {
+            return 1;
+        }
+        if (x < -20) {
+            return -1;
+        }
+        double e = Math.exp(2 * x);
+        return (e - 1) / (e + 1);
+    }
+
+    /**
+     * Math.tanh, or fastTanh in fastMath mode
+     */
+    public static double tanh(double x) {
+        return fastMath ? fastTanh(x) : Math.tanh(x);
+    }
+
     public static SimpleMatrix concatenateWithBias(SimpleMatrix ... vectors) {
         return concatenateWithBias(Arrays.asList(vectors));
     }
@@ -53,25 +83,93 @@ public class Utils {
      * not already a vector, be sure this is what you actually want.
      */
     public static SimpleMatrix softmax(SimpleMatrix input) {
-        SimpleMatrix output = new SimpleMatrix(input);
-        for (int i = 0; i < output.numRows(); ++i) {
-            for (int j = 0; j < output.numCols(); ++j) {
-                output.set(i, j, Math.exp(output.get(i, j)));
+        SimpleMatrix output = new SimpleMatrix(input.numRows(), input.numCols());
+        softmax(input.getMatrix(), output.getMatrix());
+        return output;
+    }
+
+    /**
+     * In place version of softmax, output can be the same matrix as input.
+     * The inputs are shifted by their max so that exp never overflows.
+     */
+    public static void softmax(D1Matrix64F input, D1Matrix64F output) {
+        int n = input.getNumElements();
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            max = Math.max(max, input.data[i]);
+        }
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            output.data[i] = Math.exp(input.data[i] - max);
+            sum += output.data[i];
+        }
+        // at least 1, from the max
+        double scale = 1.0 / sum;
+        for (int i = 0; i < n; i++) {
+            output.data[i] *= scale;
+        }
+    }
+
+    /**
+     * Fused output layer of the row b of a batch of K scores per row: turns the scores into probabilities, shifted by
+     * their max as log-sum-exp so that no score overflows, and computes with the same exponentials the error y - p
+     * and the cross-entropy of the true label, -log p[label] = logsumexp - score[label], instead of a one-hot
+     * vector and the log of every probability.
+     * @param scores: row-major scores, the row b is replaced by its probabilities
+     * @param b: row
+     * @param K: number of labels
+     * @param label: index of the true label, -1 if unknown (no error nor cross-entropy)
+     * @param error: row-major, its row b receives y - p, can be null
+     * @param predicted: receives the index of the highest score at b, can be null
+     * @return cross-entropy of the label, 0 if it is unknown
+     */
+    public static double softmaxCrossEntropy(double[] scores, int b, int K, int label, double[] error,
+                                             int[] predicted) {
+        int offset = b * K;
+        int best = 0;
+        double max = scores[offset];
+        for (int k = 1; k < K; k++) {
+            if (scores[offset + k] > max) {
+                max = scores[offset + k];
+                best = k;
             }
         }
-        double sum = output.elementSum();
-        // will be safe, since exp should never return 0
-        return output.scale(1.0 / sum);
+        double labelScore = label >= 0 ? scores[offset + label] - max : 0;
+        double sum = 0;
+        for (int k = 0; k < K; k++) {
+            double e = Math.exp(scores[offset + k] - max);
+            scores[offset + k] = e;
+            sum += e;
+        }
+        double scale = 1.0 / sum;
+        if (label >= 0 && error != null) {
+            for (int k = 0; k < K; k++) {
+                double p = scores[offset + k] * scale;
+                scores[offset + k] = p;
+                error[offset + k] = -p;
+            }
+            error[offset + label] += 1.0;
+        } else {
+            for (int k = 0; k < K; k++) {
+                scores[offset + k] *= scale;
+            }
+        }
+        if (predicted != null) {
+            predicted[b] = best;
+        }
+        return label >= 0 ? Math.log(sum) - labelScore : 0;
     }
+
     /**
      * Applies log to each of the entries in the matrix. Returns a new matrix.
      */
     public static SimpleMatrix elementwiseApplyLog(SimpleMatrix input) {
-        SimpleMatrix output = new SimpleMatrix(input);
-        for (int i = 0; i < output.numRows(); ++i) {
-            for (int j = 0; j < output.numCols(); ++j) {
-                output.set(i, j, Math.log(output.get(i, j)));
-            }
+        SimpleMatrix output = new SimpleMatrix(input.numRows(), input.numCols());
+        double[] in = input.getMatrix().data;
+        double[] out = output.getMatrix().data;
+        int n = input.getNumElements();
+        for (int i = 0; i < n; i++) {
+            out[i] = Math.log(in[i]);
         }
         return output;
     }
@@ -79,24 +177,43 @@ public class Utils {
      * Applies tanh to each of the entries in the matrix. Returns a new matrix.
      */
     public static SimpleMatrix elementwiseApplyTanh(SimpleMatrix input) {
-        SimpleMatrix output = new SimpleMatrix(input);
-        for (int i = 0; i < output.numRows(); ++i) {
-            for (int j = 0; j < output.numCols(); ++j) {
-                output.set(i, j, Math.tanh(output.get(i, j)));
+        SimpleMatrix output = new SimpleMatrix(input.numRows(), input.numCols());
+        elementwiseApplyTanh(input.getMatrix(), output.getMatrix());
+        return output;
+    }
+    /**
+     * In place version of tanh, writes the first input.getNumElements() entries of output.
+     */
+    public static void elementwiseApplyTanh(D1Matrix64F input, D1Matrix64F output) {
+        int n = input.getNumElements();
+        if (fastMath) {
+            for (int i = 0; i < n; i++) {
+                output.data[i] = fastTanh(input.data[i]);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                output.data[i] = Math.tanh(input.data[i]);
             }
         }
-        return output;
     }
     /**
      * Applies the derivative of tanh to each of the elements in the vector. Returns a new matrix.
      */
     public static SimpleMatrix elementwiseApplyTanhDerivative(SimpleMatrix input) {
         SimpleMatrix output = new SimpleMatrix(input.numRows(), input.numCols());
-        output.set(1.0);
-        SimpleMatrix tanh = elementwiseApplyTanh(input);
-        output = output.minus(tanh.elementMult(tanh));
+        elementwiseApplyTanhDerivative(input.getMatrix(), output.getMatrix());
         return output;
     }
+    /**
+     * In place version of the derivative of tanh, writes the first input.getNumElements() entries of output.
+     */
+    public static void elementwiseApplyTanhDerivative(D1Matrix64F input, D1Matrix64F output) {
+        int n = input.getNumElements();
+        for (int i = 0; i < n; i++) {
+            double tanh = tanh(input.data[i]);
+            output.data[i] = 1.0 - tanh * tanh;
+        }
+    }
 
     /**
      * Create an indicator vector of dim n
@@ -119,32 +236,63 @@ public class Utils {
     }
 
     public static int argmax(SimpleMatrix P) {
+        return argmax(P.getMatrix());
+    }
+
+    public static int argmax(D1Matrix64F P) {
         int idx_max = 0;
         double p_max = 0;
         for (int i = 0; i < P.getNumElements(); i++){
-            if (P.get(i) > p_max){
-                p_max = P.get(i);
+            if (P.data[i] > p_max){
+                p_max = P.data[i];
                 idx_max = i;
             }
         }
         return idx_max;
     }
     
-    public static SimpleMatrix getDropvector(int rows, int cols, double dropout) {
-        Random rand = new Random();
-        SimpleMatrix r = SimpleMatrix.random(rows, cols, 0, 1, rand);
-        for (int i = 0; i < r.getNumElements(); i++){
-        	if (r.get(i) < dropout){
-        		r.set(i, 1);
-        	}
-        	else{
-        		r.set(i, 0);
-        	}
-        }
-
+    public static SimpleMatrix getDropvector(int rows, int cols, double dropout, Random rand) {
+        SimpleMatrix r = new SimpleMatrix(rows, cols);
+        fillDropvector(r.getMatrix(), dropout, rand);
         return r;
     }
 
+    /**
+     * In place version of getDropvector: each entry is 1 with probability dropout, 0 otherwise
+     */
+    public static void fillDropvector(D1Matrix64F r, double dropout, Random rand) {
+        int n = r.getNumElements();
+        if (dropout >= 1) {
+            // every unit is kept, no need to draw
+            for (int i = 0; i < n; i++) {
+                r.data[i] = 1;
+            }
+            return;
+        }
+        if (fastMath) {
+            // two units per long, each one from 32 random bits
+            long threshold = (long) (dropout * (1L << 32));
+            int i = 0;
+            for (; i + 1 < n; i += 2) {
+                long bits = rand.nextLong();
+                r.data[i] = (bits >>> 32) < threshold ? 1 : 0;
+                r.data[i + 1] = (bits & 0xFFFFFFFFL) < threshold ? 1 : 0;
+            }
+            if (i < n) {
+                r.data[i] = (rand.nextInt() & 0xFFFFFFFFL) < threshold ? 1 : 0;
+            }
+            return;
+        }
+        for (int i = 0; i < n; i++){
+            if (rand.nextDouble() < dropout){
+                r.data[i] = 1;
+            }
+            else{
+                r.data[i] = 0;
+            }
+        }
+    }
+
     public static SimpleMatrix normalizeRows(SimpleMatrix m, double coef) {
         for (int i = 0; i < m.numRows(); i++) {
             SimpleMatrix row = m.extractVector(true, i);
@@ -0,0 +1,210 @@
+package cs224n.deep;
+
+import java.util.Arrays;
+
+/**
+ * Vocabulary mapping words to their row in L and back.
+ * Words are stored in an open-addressing table (linear probing) holding the index and the precomputed hash of
+ * each word, so a lookup is a single probe sequence without boxing.
+ */
+public class Vocabulary {
+
+    // Word of each index
+    private String[] words;
+    private int size;
+
+    // Index + 1 of the word in each slot (0 for an empty slot) and hash of that word
+    private int[] slots;
+    private int[] hashes;
+    private int mask;
+
+    // Index of FeatureFactory.UNK_TOKEN, -1 until it is added
+    private int unknown = -1;
+
+    public Vocabulary() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize: number of words expected, avoids growing the table while loading
+     */
+    public Vocabulary(int expectedSize) {
+        int capacity = 16;
+        // keep the load factor under 1/2
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        words = new String[Math.max(expectedSize, 1)];
+        slots = new int[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(String word) {
+        int h = word.hashCode();
+        // spread the high bits, String hashes of short words differ mostly in the low bits
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Adds a word at the next index if it is not already in the vocabulary
+     * @param word
+     * @return index of the word
+     */
+    public int add(String word) {
+        int h = hash(word);
+        int slot = h & mask;
+        while (slots[slot] != 0) {
+            if (hashes[slot] == h && words[slots[slot] - 1].equals(word)) {
+                return slots[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int index = size++;
+        if (index == words.length) {
+            words = Arrays.copyOf(words, 2 * words.length);
+        }
+        words[index] = word;
+        slots[slot] = index + 1;
+        hashes[slot] = h;
+        if (unknown < 0 && word.equals(FeatureFactory.UNK_TOKEN)) {
+            unknown = index;
+        }
+
+        if (2 * size > slots.length) {
+            rehash(2 * slots.length);
+        }
+        return index;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldSlots = slots;
+        int[] oldHashes = hashes;
+        slots = new int[capacity];
+        hashes = new int[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != 0) {
+                int slot = oldHashes[i] & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = oldSlots[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    /**
+     * @param word
+     * @return index of the word, or notFound if it is not in the vocabulary
+     */
+    private int lookup(String word, int notFound) {
+        int h = hash(word);
+        int slot = h & mask;
+        while (slots[slot] != 0) {
+            if (hashes[slot] == h && words[slots[slot] - 1].equals(word)) {
+                return slots[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return notFound;
+    }
+
+    /**
+     * Same as indexOrUnknown(String) for a word given as ASCII bytes, without creating a String
+     * @param ascii
+     * @param length: number of bytes of the word
+     * @return index of the word, index of UNK_TOKEN if it is not in the vocabulary
+     */
+    public int indexOrUnknown(byte[] ascii, int length) {
+        // String.hashCode, the chars of an ASCII word being its bytes
+        int h = 0;
+        for (int i = 0; i < length; i++) {
+            h = 31 * h + ascii[i];
+        }
+        h ^= h >>> 16;
+
+        int slot = h & mask;
+        while (slots[slot] != 0) {
+            if (hashes[slot] == h && equals(words[slots[slot] - 1], ascii, length)) {
+                return slots[slot] - 1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return unknown;
+    }
+
+    private static boolean equals(String word, byte[] ascii, int length) {
+        if (word.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (word.charAt(i) != ascii[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param word
+     * @return index of the word, -1 if it is not in the vocabulary
+     */
+    public int indexOf(String word) {
+        return lookup(word, -1);
+    }
+
+    /**
+     * @param word
+     * @return index of the word, index of UNK_TOKEN if it is not in the vocabulary
+     */
+    public int indexOrUnknown(String word) {
+        return lookup(word, unknown);
+    }
+
+    public boolean contains(String word) {
+        return lookup(word, -1) >= 0;
+    }
+
+    /**
+     * @param index
+     * @return word at this index
+     */
+    public String word(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("No word at index " + index);
+        }
+        return words[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return 64-bit FNV-1a hash of the words in index order, identifies the vocabulary a model was trained with
+     */
+    public long fingerprint() {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < size; i++) {
+            String word = words[i];
+            for (int j = 0; j < word.length(); j++) {
+                h ^= word.charAt(j);
+                h *= 0x100000001b3L;
+            }
+            // separator, so that splitting words differently changes the hash
+            h ^= 0xffff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * @return index of UNK_TOKEN, -1 if it is not in the vocabulary
+     */
+    public int unknownIndex() {
+        return unknown;
+    }
+}
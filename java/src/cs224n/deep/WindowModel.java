@@ -1,16 +1,21 @@
 package cs224n.deep;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.lang.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
 import org.ejml.simple.*;
 
 import static cs224n.deep.Utils.*;
 
 public class WindowModel {
 
-    protected SimpleMatrix L, W, U;
+    protected SimpleMatrix W, U;
+    // Word vectors, in single precision in float32 mode
+    protected Embeddings L;
     public int windowSize, wordSize, hiddenSize, maxEpochs, numWords, K;
     public double lr0, tau, lambda; // Base learning rate + time constant
     public double dropoutX, dropoutZ; // Probability of keeping a neuron activated
@@ -18,12 +23,61 @@ public class WindowModel {
     
     public double lrW0, lrL0, lrU0;
 
-    public Map<String, Integer> wordToNum;
+    public Vocabulary vocab;
+
+    // Store the word vectors in single precision, must be set before they are initialized or loaded
+    public boolean float32 = false;
+
+    // Number of threads used for training, more than one enables lock-free (Hogwild) updates of U, W and L
+    public int numThreads = 1;
+
+    // Number of windows per SGD step, the gradients of a mini-batch are summed
+    public int batchSize = 1;
+
+    /**
+     * Lazy weight decay: the actual weights are uScale * U and wScale * W. Decay only shrinks the scale,
+     * the matrices are rescaled (folded) when the scale gets too small and at the end of every epoch.
+     * Volatile so that Hogwild workers see each other's decay.
+     */
+    protected volatile double uScale = 1., wScale = 1.;
+    private static final double MIN_SCALE = 1e-3;
+    // Whether U and W hold the weights for prediction, scaled by the probabilities of keeping their inputs, instead of
+    // the training ones (as after training and in checkpoints)
+    private boolean scaledForPrediction = false;
+
+    // Buffers for the forward and backward pass of the calling thread
+    private Workspace workspace;
+
+    // Number of words whose first layer contributions are precomputed for prediction (0 to disable the cache)
+    // and number of contributions of other words kept in the cache of each thread
+    public int projectionCacheWords = 0;
+    public int projectionCacheSize = 1 << 16;
+    private ProjectionCache projectionCache;
+    // Best weights while training, null otherwise
+    private Snapshot snapshot;
+    // Flags of the rows of L updated, set by the training steps when not null
+    private boolean[] dirtyRows;
+
+    // Training metrics, null to disable them
+    public Telemetry telemetry;
+
+    // Print the progress and the precision of every epoch while training
+    public boolean verbose = true;
+    // Wall time after which training stops at the next progress check (every 10000 examples), 0 for no limit
+    public long timeBudgetMillis = 0;
+    // Number of epochs run by the last training, the last one can be partial
+    public int trainedEpochs;
+    // Order of the training windows in every epoch (see EpochScheduler) and seed of its permutations
+    public String sampling = EpochScheduler.NONE;
+    public long samplingSeed = new Random().nextLong();
+    // Update rule (see Optimizer), its state being reset by every training
+    public String optimizer = Optimizer.SGD;
+    private Optimizer updater;
 
     public WindowModel(int windowSize, int wordSize, int hiddenSize,                				// Network parameters
             int maxEpochs, double lrU0, double lrW0, double lrL0, double tau, double lambda,        // Optimization parameters
             double dropoutX, double dropoutZ,
-            Map<String, Integer> wordToNum, List<String> labels) {
+            Vocabulary vocab, List<String> labels) {
 		assert (windowSize % 2 == 1);
 		this.windowSize = windowSize;
 		this.wordSize = wordSize;
@@ -36,10 +90,16 @@ public class WindowModel {
 		this.lambda = lambda;
 		this.dropoutX = dropoutX;
 		this.dropoutZ = dropoutZ;
-		this.wordToNum = wordToNum;
-		this.numWords = wordToNum.size();
+		this.vocab = vocab;
+		this.numWords = vocab.size();
 		this.labels = labels;
 		this.K = labels.size();
+    }
+
+    /**
+     * Prints the network and optimization parameters
+     */
+    public void printParameters() {
 		System.out.println(String.format(
                 "Window size: %d, word size: %d, hidden size: %d\n" +
                 "max epochs: %d, learning rate (U, W, L): %f, %f, %f\n" +
@@ -56,19 +116,27 @@ public class WindowModel {
      */
 
     public void loadVocab(SimpleMatrix allVec) {
+        loadVocab(Embeddings.of(allVec, float32));
+    }
+
+    public void loadVocab(Embeddings allVec) {
         this.L = allVec;
+        this.projectionCache = null;
     }
 
     public void loadWeightsW(SimpleMatrix W) {
         this.W = W;
+        this.wScale = 1.;
+        this.projectionCache = null;
     }
 
     public void loadWeightsU(SimpleMatrix U) {
         this.U = U;
+        this.uScale = 1.;
     }
 
     public void dumpVocab(String filename) throws IOException {
-        L.saveToFileCSV(filename);
+        L.toMatrix().saveToFileCSV(filename);
     }
 
     public void dumpWeigthsW(String filename) throws IOException {
@@ -79,6 +147,26 @@ public class WindowModel {
         U.saveToFileCSV(filename);
     }
 
+    /**
+     * Writes U, W and L in a binary checkpoint
+     * @param filename
+     * @throws IOException
+     */
+    public void dumpCheckpoint(String filename) throws IOException {
+        foldScales();
+        Checkpoint.write(this, filename);
+    }
+
+    /**
+     * Loads U, W and L from a binary checkpoint written with the same dimensions, labels and vocabulary
+     * @param filename
+     * @throws IOException
+     */
+    public void loadCheckpoint(String filename) throws IOException {
+        Checkpoint.open(filename).loadInto(this);
+        scaledForPrediction = true;
+    }
+
     /**
      * Initializes the weights randomly according to the fan-in fan-out rule
      */
@@ -87,11 +175,28 @@ public class WindowModel {
         Random rand = new Random();
         W = helperInitWeights(windowSize * wordSize + 1, hiddenSize, rand);
         U = helperInitWeights(hiddenSize + 1, K, rand);
+        uScale = 1.;
+        wScale = 1.;
+        scaledForPrediction = false;
+    }
+
+    /**
+     * Applies the pending lazy weight decay to U and W in place, so that the matrices hold the actual weights
+     */
+    private void foldScales() {
+        if (uScale != 1.) {
+            CommonOps.scale(uScale, U.getMatrix());
+            uScale = 1.;
+        }
+        if (wScale != 1.) {
+            CommonOps.scale(wScale, W.getMatrix());
+            wScale = 1.;
+        }
     }
 
     public void initVocab() {
         Random rand = new Random();
-        L = helperInitWeights(wordSize, wordToNum.size(), rand);
+        loadVocab(helperInitWeights(wordSize, vocab.size(), rand));
     }
 
     private SimpleMatrix helperInitWeights(int fanin, int fanout, Random rand) {
@@ -100,423 +205,500 @@ public class WindowModel {
     }
 
     /**
-     * Computation helpers
+     * Gradient checks of the forward and backward pass used for training, on the current weights (see GradientCheck)
      */
 
-    // Compute Error
-
-    private static SimpleMatrix computeError(SimpleMatrix y, SimpleMatrix p) {
-        return y.minus(p);
+    private GradientCheck newGradientCheck(double precision) {
+        GradientCheck check = new GradientCheck(this, numThreads);
+        check.epsilon = precision;
+        return check;
     }
 
-    // Compute delta
-
-    private static SimpleMatrix computeDelta(SimpleMatrix errorVector, SimpleMatrix Utruncated, SimpleMatrix z) {
-        return elementwiseApplyTanhDerivative(z).elementMult(Utruncated.transpose().mult(errorVector));
-    }
-
-    // Compute P
-
-    private SimpleMatrix computePFromX(SimpleMatrix xbiased) {
-        return computePFromUWx(U, W, xbiased);
+    /**
+     * @param trials: number of random windows, all the coordinates are checked
+     * @param precision: perturbation of a coordinate
+     * @return maximum absolute difference between the gradient and its central differences
+     */
+    public double computeUgradCheck(int trials, double precision) {
+        return newGradientCheck(precision).checkU(trials, 0).maxAbsoluteError;
     }
 
-    private static SimpleMatrix computePFromUh(SimpleMatrix U, SimpleMatrix hbiased) {
-        return softmax(U.mult(hbiased));
+    public double computeWgradCheck(int trials, double precision) {
+        return newGradientCheck(precision).checkW(trials, 0).maxAbsoluteError;
     }
 
-    private static SimpleMatrix computePFromUWx(SimpleMatrix U, SimpleMatrix W, SimpleMatrix xbiased) {
-        SimpleMatrix h = elementwiseApplyTanh(W.mult(xbiased));
-        return computePFromUh(U, concatenateWithBias(h));
+    public double computeXgradCheck(int trials, double precision) {
+        return newGradientCheck(precision).checkX(trials, 0).maxAbsoluteError;
     }
 
-    // Cost
-
-    private static double computeCostFromP(SimpleMatrix y, SimpleMatrix p) {
-        return y.elementMult(elementwiseApplyLog(p)).elementSum();
-    }
+    /**
+     * Processing helpers
+     */
 
-    private static double computeCostFromUh(SimpleMatrix y, SimpleMatrix U, SimpleMatrix hbiased) {
-        return computeCostFromP(y, softmax(U.mult(hbiased)));
+    /**
+     * @param data: input list of Datum
+     * @param keepText: keep the original words, needed to write predictions
+     * @return data encoded as windows for this model
+     */
+    public Corpus encode(List<Datum> data, boolean keepText) {
+        return new Corpus(data, vocab, labels, windowSize, keepText);
     }
 
-    private static double computeCostFromUWx(SimpleMatrix y, SimpleMatrix U, SimpleMatrix W, SimpleMatrix xbiased) {
-        return computeCostFromUh(y, U, concatenateWithBias(elementwiseApplyTanh(W.mult(xbiased))));
+    /**
+     * Get word index in the matrix L
+     * @param word
+     * @return
+     */
+    private int getWordIndex(String word) {
+        return vocab.indexOrUnknown(word);
     }
 
     /**
-     * Gradient checks
+     * Get all words index from list of Datum
+     * @param buffer
+     * @param inputIndex: filled with the index of each word, starting at offset
+     * @param offset
      */
-
-    // U grad
-
-    private static SimpleMatrix computeUgradFromError(SimpleMatrix errorVector, SimpleMatrix hbiased) {
-        return errorVector.mult(hbiased.transpose());
+    private void getLindFromBuffer(List<Datum> buffer, int[] inputIndex, int offset) {
+        for (int i = 0; i < windowSize; i++) {
+            inputIndex[offset + i] = getWordIndex(buffer.get(i).word);
+        }
     }
 
-    private static SimpleMatrix computeUgradFromUh(SimpleMatrix y, SimpleMatrix U, SimpleMatrix hbiased) {
-        SimpleMatrix p = computePFromUh(U, hbiased);
-        SimpleMatrix error = computeError(y, p);
-        return computeUgradFromError(error, hbiased);
+    /**
+     * Loads the windows from (included) to (excluded) as the current batch of the workspace
+     * @param examples
+     * @param order: permutation of the windows, null for the corpus order
+     * @param ws
+     */
+    private void loadBatch(Corpus examples, int[] order, int from, int to, Workspace ws) {
+        loadIndices(examples, order, from, to, ws);
+        ws.loadX(L);
     }
 
-    public double computeUgradCheck(int trials, double precision) {
-        Random rand = new Random();
-
-        List<Double> differences = new ArrayList<Double>();
-        for (int i = 0; i < trials; i++) {
-            SimpleMatrix y = indicator(K, rand.nextInt(K));
-            SimpleMatrix hbiased = concatenateWithBias(SimpleMatrix.random(hiddenSize, 1, 0, 1, rand));
-            SimpleMatrix Utest = helperInitWeights(U.numCols(), U.numRows(), rand);
-
-            SimpleMatrix trueGrad = computeUgradFromUh(y, Utest, hbiased);
-
-            for (int row = 0; row < Utest.numRows(); row++) {
-                for (int col = 0; col < Utest.numCols(); col++) {
-                    SimpleMatrix eps = new SimpleMatrix(Utest.numRows(), Utest.numCols());
-                    eps.zero();
-                    eps.set(row, col, precision);
-
-                    SimpleMatrix Upluseps = Utest.plus(eps);
-                    SimpleMatrix Uminuseps = Utest.minus(eps);
-
-                    double diff = (computeCostFromUh(y, Upluseps, hbiased) - computeCostFromUh(y, Uminuseps, hbiased))
-                            / (2 * precision);
-
-                    differences.add(Math.abs( diff - trueGrad.get(row, col) ));
-                }
-            }
+    /**
+     * Sets the word indices and labels of the windows from (included) to (excluded), without loading X
+     */
+    private void loadIndices(Corpus examples, int[] order, int from, int to, Workspace ws) {
+        ws.setBatch(to - from);
+        for (int b = 0; b < to - from; b++) {
+            int offset = examples.windows[order != null ? order[from + b] : from + b];
+            System.arraycopy(examples.words, offset, ws.index, b * windowSize, windowSize);
+            ws.label[b] = examples.labels[offset + windowSize / 2];
         }
-        return Collections.max(differences);
     }
 
-    // W grad
-
-    private static SimpleMatrix computeWgradFromDelta(SimpleMatrix delta, SimpleMatrix xbiased) {
-        return delta.mult(xbiased.transpose());
-    }
-
-    private static SimpleMatrix computeWgradFromUWx(SimpleMatrix y, SimpleMatrix U, SimpleMatrix W, SimpleMatrix xbiased) {
-        SimpleMatrix Utruncated = withoutLastCol(U);
-
-        SimpleMatrix z = W.mult(xbiased);
-        SimpleMatrix p = computePFromUWx(U, W, xbiased);
-        SimpleMatrix error = computeError(y, p);
-        SimpleMatrix delta = computeDelta(error, Utruncated, z);
-
-        return computeWgradFromDelta(delta, xbiased);
+    /**
+     * @return a new workspace matching the dimensions and batch size of this model
+     */
+    public Workspace newWorkspace() {
+        return new Workspace(windowSize, wordSize, hiddenSize, K, batchSize);
     }
 
-    public double computeWgradCheck(int trials, double precision) {
-        Random rand = new Random();
-
-        List<Double> differences = new ArrayList<Double>();
-        for (int i = 0; i < trials; i++) {
-            SimpleMatrix y = indicator(K, rand.nextInt(K));
-            SimpleMatrix xtest = concatenateWithBias(SimpleMatrix.random(windowSize * wordSize, 1, 0, 1, rand));
-            SimpleMatrix Wtest = helperInitWeights(W.numCols(), W.numRows(), rand);
-            SimpleMatrix Utest = helperInitWeights(U.numCols(), U.numRows(), rand);
-
-            SimpleMatrix trueGrad = computeWgradFromUWx(y, Utest, Wtest, xtest);
-
-           for (int row = 0; row < Wtest.numRows(); row++) {
-                for (int col = 0; col < Wtest.numCols(); col++) {
-                    SimpleMatrix eps = new SimpleMatrix(Wtest.numRows(), Wtest.numCols());
-                    eps.zero();
-                    eps.set(row, col, precision);
-
-                    SimpleMatrix Wpluseps = Wtest.plus(eps);
-                    SimpleMatrix Wminuseps = Wtest.minus(eps);
-
-                    double diff = (computeCostFromUWx(y, Utest, Wpluseps, xtest) - computeCostFromUWx(y, Utest, Wminuseps, xtest))
-                            / (2 * precision);
-
-                    differences.add(Math.abs( diff - trueGrad.get(row, col) ));
-                }
-            }
+    private Workspace getWorkspace() {
+        if (workspace == null) {
+            workspace = newWorkspace();
         }
-        return Collections.max(differences);
+        return workspace;
     }
 
-    // X gradient
-
-    private static SimpleMatrix computeXgradFromDelta(SimpleMatrix delta, SimpleMatrix Wtruncated) {
-        return Wtruncated.transpose().mult(delta);
+    /**
+     * @return the projection cache of the current W and L, null if it is disabled. It is dropped when they change,
+     * so that it follows the scaling of W for prediction.
+     */
+    public synchronized ProjectionCache getProjectionCache() {
+        if (projectionCacheWords <= 0) {
+            return null;
+        }
+        if (projectionCache == null) {
+            foldScales();
+            projectionCache = new ProjectionCache(W.getMatrix(), L, windowSize,
+                    projectionCacheWords, projectionCacheSize);
+        }
+        return projectionCache;
     }
 
-    private static SimpleMatrix computeXgradFromUWx(SimpleMatrix y, SimpleMatrix U, SimpleMatrix W, SimpleMatrix xtruncated) {
-        SimpleMatrix xbiased = concatenateWithBias(xtruncated);
-        SimpleMatrix Utruncated = withoutLastCol(U);
-        SimpleMatrix Wtruncated = withoutLastCol(W);
-
-        SimpleMatrix z = W.mult(xbiased);
-        SimpleMatrix p = computePFromUWx(U, W, xbiased);
-        SimpleMatrix error = computeError(y, p);
-        SimpleMatrix delta = computeDelta(error, Utruncated, z);
+    /**
+     * Simplest SGD training
+     */
 
-        return computeXgradFromDelta(delta, Wtruncated);
+    /**
+     * Update U, W, L based on the mini-batch of examples from (included) to (excluded), to be used in the SGD.
+     * Only the rows of L in the windows are touched, U and W are updated in place, with the step of the optimizer.
+     * Can be called concurrently with different workspaces (Hogwild), the scales are never folded here.
+     * Package-private for the benchmarks.
+     * @param examples
+     * @param ws: buffers for the forward and backward pass
+     */
+    void updateWeights(Corpus examples, int from, int to, Workspace ws,
+                               double lrU, double lrW, double lrL) {
+        if (updater == null) {
+            updater = newOptimizer();
+        }
+        updateWeights(examples, null, from, to, ws, lrU, lrW, lrL);
     }
 
-    public double computeXgradCheck(int trials, double precision) {
-        Random rand = new Random();
-
-        List<Double> differences = new ArrayList<Double>();
-        for (int i = 0; i < trials; i++) {
-            SimpleMatrix y = indicator(K, rand.nextInt(K));
-            SimpleMatrix xtest = SimpleMatrix.random(windowSize * wordSize, 1, 0, 1, rand);
-            SimpleMatrix Wtest = helperInitWeights(W.numCols(), W.numRows(), rand);
-            SimpleMatrix Utest = helperInitWeights(U.numCols(), U.numRows(), rand);
-
-            SimpleMatrix trueGrad = computeXgradFromUWx(y, Utest, Wtest, xtest);
-
-            for (int row = 0; row < xtest.numRows(); row++) {
-                for (int col = 0; col < xtest.numCols(); col++) {
-                    SimpleMatrix eps = new SimpleMatrix(xtest.numRows(), xtest.numCols());
-                    eps.zero();
-                    eps.set(row, col, precision);
-
-                    SimpleMatrix xpluseps = concatenateWithBias(xtest.plus(eps));
-                    SimpleMatrix xminuseps = concatenateWithBias(xtest.minus(eps));
-
-                    double diff = (computeCostFromUWx(y, Utest, Wtest, xpluseps) - computeCostFromUWx(y, Utest, Wtest, xminuseps))
-                            / (2 * precision);
-
-                    differences.add(Math.abs( diff - trueGrad.get(row, col) ));
-                }
+    /**
+     * Same as updateWeights, for the windows from (included) to (excluded) of the order
+     * @param order: permutation of the windows, null for the corpus order
+     */
+    private void updateWeights(Corpus examples, int[] order, int from, int to, Workspace ws,
+                               double lrU, double lrW, double lrL) {
+        Telemetry.Counters counters = ws.counters;
+        long startTime = counters != null ? System.nanoTime() : 0;
+
+        loadBatch(examples, order, from, to, ws);
+        int n = to - from;
+
+        DenseMatrix64F Umat = U.getMatrix();
+        DenseMatrix64F Wmat = W.getMatrix();
+
+        ws.drawDropout(dropoutX, dropoutZ);
+        ws.forward(Umat, uScale, Wmat, wScale, true);
+        long forwardTime = counters != null ? System.nanoTime() : 0;
+        ws.backward(Umat, uScale, Wmat, wScale);
+        long backwardTime = counters != null ? System.nanoTime() : 0;
+
+        // Update U: decay the scale once per example, then add the step of the summed gradient E^T H in the scaled
+        // space
+        uScale *= Math.pow(1. - lambda * lrU, n);
+        updater.updateU(ws, Umat, uScale, lrU);
+
+        // Update W with delta^T X
+        wScale *= Math.pow(1. - lambda * lrW, n);
+        updater.updateW(ws, Wmat, wScale, lrW);
+
+        // Update the rows of L of the windows
+        updater.updateL(ws, L, lrL);
+        boolean[] dirty = this.dirtyRows;
+        if (dirty != null) {
+            for (int i = 0; i < n * windowSize; i++) {
+                dirty[ws.index[i]] = true;
             }
         }
-        return Collections.max(differences);
+
+        if (counters != null) {
+            counters.record(n, startTime, forwardTime, backwardTime, System.nanoTime());
+            counters.addGradientNorms(ws);
+        }
     }
 
     /**
-     * Processing helpers
+     * @return the optimizer named by optimizer, with a new state
      */
+    private Optimizer newOptimizer() {
+        return Optimizer.create(optimizer, K * (hiddenSize + 1), hiddenSize * (windowSize * wordSize + 1),
+                L.numWords, wordSize);
+    }
 
     /**
-     * @param data: input list of Datum
-     * @return list of examples matching each word to label
+     * Train the three matrices using the passed training data, stops when the precision decreases on the dev set
+     * @param trainData
+     * @param holdoutData
+     * @return holdout precision of the weights kept
      */
-    public List<List<Datum>> yieldExamples(List<Datum> data) {
-        List<List<Datum>> examples = new ArrayList<List<Datum>>();
-
-        List<Datum> buffer = new ArrayList<Datum>();
-        for (Datum datum : data) {
+    public double train(List<Datum> trainData, List<Datum> holdoutData) {
+        return train(encode(trainData, false), encode(holdoutData, false));
+    }
 
-            if (datum.word.equals(FeatureFactory.START_TOKEN)) {
-                // Clear buffer if we are restarting a sentence
-                buffer.clear();
+    /**
+     * Train the three matrices on already encoded windows, stops when the precision decreases on the dev set or when
+     * the time budget is spent. The corpora are only read, they can be shared by models trained concurrently.
+     * @param allExamples
+     * @param holdoutExamples
+     * @return holdout precision of the weights kept
+     */
+    public double train(Corpus allExamples, Corpus holdoutExamples) {
+        long deadline = timeBudgetMillis > 0 ? System.currentTimeMillis() + timeBudgetMillis : Long.MAX_VALUE;
+        // W and L change, a cache built before would be stale
+        projectionCache = null;
+
+        scaleForTraining();
+        snapshot = new Snapshot(this);
+        dirtyRows = snapshot.dirty;
+
+        Workspace ws = getWorkspace();
+
+        // One workspace (and dropout random generator) per thread
+        ExecutorService pool = null;
+        Workspace[] workspaces = new Workspace[numThreads];
+        workspaces[0] = ws;
+        if (numThreads > 1) {
+            pool = Executors.newFixedThreadPool(numThreads);
+            for (int t = 1; t < numThreads; t++) {
+                workspaces[t] = newWorkspace();
+            }
+        }
+        for (Workspace w : workspaces) {
+            w.counters = telemetry != null ? telemetry.newCounters() : null;
+        }
+        if (telemetry != null) {
+            telemetry.start();
+        }
 
-                // Padding when entering sentence
-                for (int i = 0; i < windowSize / 2; i++) {
-                    buffer.add(datum);
+        double precision = 0;
+        try {
+            EpochScheduler scheduler = new EpochScheduler(allExamples, K, sampling, samplingSeed);
+            updater = newOptimizer();
+
+            double newPrecision = 0;
+            trainedEpochs = 0;
+            for (int epoch = 0; epoch < maxEpochs; epoch++) {
+                long startTime = System.currentTimeMillis();
+                trainedEpochs++;
+                int[] order = scheduler.next();
+
+                // Compute learning rates for this epoch
+                double lrU = lrU0 / (1. + ((double) epoch / tau));
+                double lrW = lrW0 / (1. + ((double) epoch / tau));
+                double lrL = lrL0 / (1. + ((double) epoch / tau));
+
+                if (pool != null) {
+                    trainHogwild(pool, workspaces, allExamples, order, lrU, lrW, lrL, startTime, deadline);
+                } else {
+                    long allocated = ws.counters != null ? Telemetry.threadAllocatedBytes() : -1;
+                    for (int from = 0; from < allExamples.size(); from += batchSize) {
+                        int to = Math.min(from + batchSize, allExamples.size());
+                        updateWeights(allExamples, order, from, to, ws, lrU, lrW, lrL);
+                        if (uScale < MIN_SCALE || wScale < MIN_SCALE) {
+                            foldScales();
+                        }
+
+                        if (to / 10000 != from / 10000) {
+                            long sofarTime = System.currentTimeMillis();
+                            if (verbose) {
+                                System.out.print(String.format(
+                                        "\rTraining (%d examples seen in %ds)", to, (sofarTime - startTime) / 1000));
+                            }
+                            if (sofarTime > deadline) {
+                                break;
+                            }
+                        }
+                    }
+                    if (ws.counters != null) {
+                        ws.counters.addAllocatedSince(allocated);
+                    }
                 }
+                long trainTime = System.currentTimeMillis() - startTime;
+                foldScales();
 
-                // Done for token
-                continue;
-            }
+                if (verbose) {
+                    System.out.print("\rComputing error.");
+                }
+                newPrecision = getPrecision(holdoutExamples, dropoutZ, dropoutX, pool, workspaces);
 
-            if (datum.word.equals(FeatureFactory.END_TOKEN)) {
-                // Padding until the end of the sentence
-                int paddingNeeded = windowSize - buffer.size();
-                for (int i = 0; i < paddingNeeded; i++) {
-                    buffer.add(datum);
+                long endTime = System.currentTimeMillis();
+                if (telemetry != null) {
+                    telemetry.endEpoch(epoch, endTime - startTime, endTime - startTime - trainTime, newPrecision);
+                }
+                // Keep the weights if they are better, go back to the previous epoch otherwise
+                boolean better = newPrecision >= precision;
+                if (better) {
+                    snapshot.save(this);
+                } else {
+                    snapshot.restore(this);
+                }
+                if (verbose) {
+                    System.out.println(String.format(
+                            "\rEpoch %d, delta U %f, delta W %f, delta L %f, " +
+                                    "holdout set precision %.2f%%, (iteration time %ds, %.0f examples/s).",
+                            epoch, snapshot.deltaU, snapshot.deltaW, snapshot.deltaL,
+                            100 * newPrecision, (endTime - startTime) / 1000,
+                            1000. * allExamples.size() / Math.max(trainTime, 1)));
                 }
 
-                // Continue to process until last word is in the middle
-                for (int i = 0; i < (windowSize / 2) - paddingNeeded; i++) {
-                    examples.add(new ArrayList<Datum>(buffer));
-                    buffer.remove(0);
-                    buffer.add(datum);
+                if (!better) {
+                    if (verbose) {
+                        System.out.println(String.format("Restored the weights of epoch %d (precision %.2f%%).",
+                                epoch - 1, 100 * precision));
+                    }
+                    break;
                 }
 
-                // Done for token
-                continue;
+                precision = newPrecision;
+                if (endTime > deadline) {
+                    if (verbose) {
+                        System.out.println("Time budget spent.");
+                    }
+                    break;
+                }
             }
-
-            // Add token if we haven't reached the window size
-            if (buffer.size() < windowSize) {
-                buffer.add(datum);
+            if (verbose && updater.stateRows() > 0) {
+                System.out.println(String.format("Optimizer state kept for %d of the %d words.",
+                        updater.stateRows(), L.numWords));
             }
-
-            if (buffer.size() == windowSize) {
-                // If the buffer is the right size, update the weights and remove the oldest token
-                examples.add(new ArrayList<Datum>(buffer));
-                buffer.remove(0);
+        } finally {
+            snapshot = null;
+            dirtyRows = null;
+            updater = null;
+            if (pool != null) {
+                pool.shutdown();
+            }
+            if (telemetry != null) {
+                telemetry.stop();
+                for (Workspace w : workspaces) {
+                    w.counters = null;
+                }
             }
         }
 
-        return examples;
+        scaleForPrediction();
+        return precision;
     }
 
     /**
-     * Get word index in the matrix L
-     * @param word
-     * @return
+     * Scales U and W in place by the probabilities of keeping their inputs, once training is over. Does nothing if they
+     * already are.
      */
-    private int getWordIndex(String word) {
-        if (wordToNum.containsKey(word)) {
-            return wordToNum.get(word);
-        } else {
-            return wordToNum.get(FeatureFactory.UNK_TOKEN);
+    void scaleForPrediction() {
+        foldScales();
+        if (!scaledForPrediction) {
+            CommonOps.scale(dropoutZ, U.getMatrix());
+            CommonOps.scale(dropoutX, W.getMatrix());
+            scaledForPrediction = true;
+            projectionCache = null;
         }
     }
 
     /**
-     * Get all words index from list of Datum
-     * @param buffer
-     * @return
+     * Undoes scaleForPrediction before training again, for instance from a checkpoint
      */
-    private List<Integer> getLindFromBuffer(List<Datum> buffer) {
-        List<Integer> inputIndex = new ArrayList<Integer>();
-
-        for (Datum datum : buffer) {
-            // get vector representation
-            int index = getWordIndex(datum.word);
-            inputIndex.add(index);
+    void scaleForTraining() {
+        foldScales();
+        if (scaledForPrediction) {
+            CommonOps.scale(1. / dropoutZ, U.getMatrix());
+            CommonOps.scale(1. / dropoutX, W.getMatrix());
+            scaledForPrediction = false;
+            projectionCache = null;
         }
-
-        return inputIndex;
     }
 
     /**
-     * Get vector representation (X) of phrase
-     * @param inputIndex
-     * @return
+     * SGD steps on the windows from (included) to (excluded) of the order, on the calling thread and without any
+     * evaluation, for the workers of distributed training (see DistributedWorker). The optimizer state is kept from a
+     * call to the next, the scales are folded at the end.
+     * @param examples
+     * @param order: permutation of the windows, null for the corpus order
+     * @param dirty: flags set for the rows of L updated
      */
-    private SimpleMatrix getXFromLind(List<Integer> inputIndex) {
-        List<SimpleMatrix> inputVectors = new ArrayList<SimpleMatrix>();
-        for (int index: inputIndex) {
-            SimpleMatrix curVec = L.extractVector(true, index);
-            inputVectors.add(curVec.transpose());
+    void trainSteps(Corpus examples, int[] order, int from, int to, double lrU, double lrW, double lrL,
+                    boolean[] dirty) {
+        if (updater == null) {
+            updater = newOptimizer();
         }
-
-        SimpleMatrix x = concatenate(inputVectors);
-        return x;
+        Workspace ws = getWorkspace();
+        dirtyRows = dirty;
+        try {
+            for (int start = from; start < to; start += batchSize) {
+                int end = Math.min(start + batchSize, to);
+                updateWeights(examples, order, start, end, ws, lrU, lrW, lrL);
+                if (uScale < MIN_SCALE || wScale < MIN_SCALE) {
+                    foldScales();
+                }
+            }
+        } finally {
+            dirtyRows = null;
+        }
+        foldScales();
     }
 
     /**
-     * Simplest SGD training
+     * @return the precision on the examples of the weights as they are while training, before scaleForPrediction
      */
+    double trainingPrecision(Corpus holdoutExamples) {
+        foldScales();
+        return getPrecision(holdoutExamples, dropoutZ, dropoutX, null, new Workspace[]{getWorkspace()});
+    }
 
     /**
-     * Update U, W, L based on one example, to be used in the SGD
-     * @param buffer
+     * One epoch of Hogwild SGD: the order of the examples is cut in segments, each one split in numThreads contiguous
+     * shards, and each worker updates the shared U, W and L without locking, one mini-batch at a time.
+     * The workers only decay the scales, which are folded between two segments once all workers are done with the
+     * first one, as the serial loop does between two mini-batches. The segments are short enough for the scales not
+     * to decay by more than MIN_SCALE during one of them.
      */
-    private void updateWeights(List<Datum> buffer, double lrU, double lrW, double lrL) {
-        List<Integer> inputIndex = getLindFromBuffer(buffer);
-        String label = buffer.get(windowSize / 2).label;
-
-        SimpleMatrix xorig = getXFromLind(inputIndex);
-		SimpleMatrix xkeptind = getDropvector(xorig.numRows(), xorig.numCols(), dropoutX);
-		SimpleMatrix x = xorig.elementMult(xkeptind);
-        SimpleMatrix ones = new SimpleMatrix(xkeptind);
-        ones.set(1.0);
-        SimpleMatrix otherx = xorig.elementMult(xkeptind.negative().plus(ones));
-
-        SimpleMatrix xbiased = concatenateWithBias(x);
-        SimpleMatrix z = W.mult(xbiased);
-        SimpleMatrix zdropped = getDropvector(z.numRows(), z.numCols(), dropoutZ);
-        z = z.elementMult(zdropped);
-
-        SimpleMatrix h = elementwiseApplyTanh(z);
-        SimpleMatrix hbiased = concatenateWithBias(h);
-        SimpleMatrix v = U.mult(hbiased);
-        SimpleMatrix p = softmax(v);
-
-        SimpleMatrix Utruncated = withoutLastCol(U);
-        SimpleMatrix Wtruncated = withoutLastCol(W);
-
-        SimpleMatrix y = indicator(K, labels.indexOf(label));
-        SimpleMatrix error = computeError(y, p);
-        SimpleMatrix delta = computeDelta(error, Utruncated, z);
-
-        SimpleMatrix Ugrad = computeUgradFromError(error, hbiased);
-        SimpleMatrix Wgrad = computeWgradFromDelta(delta, xbiased);
-        SimpleMatrix Xgrad = computeXgradFromDelta(delta, Wtruncated);
-        
-        
-        // Update U
-        U.set(U.scale(1. - lambda * lrU).plus(lrU, Ugrad));
-        //U = normalizeRows(U, 1);
-
-        // Update W
-        W.set(W.scale(1. - lambda * lrW).plus(lrW, Wgrad));
-        //W = normalizeRows(W, 1);
-
-        // Update x
-        x.set(x.plus(lrL, Xgrad));
-
-        // Keep only gradient for turned on units
-        x.set(x.elementMult(xkeptind));
-
-        // Replace x value for turned off units
-        x.set(x.plus(otherx));
-
-        // Reinsert x in L
-        for (int i = 0; i < inputIndex.size(); i++) {
-            int index = inputIndex.get(i);
-            L.insertIntoThis(index, 0, x.extractMatrix(i * wordSize, (i + 1) * wordSize, 0, 1).transpose());
+    private void trainHogwild(ExecutorService pool, Workspace[] workspaces, Corpus allExamples, int[] order,
+                              double lrU, double lrW, double lrL, long startTime, long deadline) {
+        AtomicInteger seen = new AtomicInteger();
+        int numExamples = allExamples.size();
+        int segmentSize = hogwildSegmentSize(numExamples, lrU, lrW);
+        for (int from = 0; from < numExamples; from += segmentSize) {
+            int to = Math.min(from + segmentSize, numExamples);
+            trainHogwildSegment(pool, workspaces, allExamples, order, from, to, lrU, lrW, lrL, seen, startTime, deadline);
+            if (uScale < MIN_SCALE || wScale < MIN_SCALE) {
+                foldScales();
+            }
+            if (System.currentTimeMillis() > deadline) {
+                break;
+            }
         }
     }
 
     /**
-     * Train the three matrices using the passed training data, stops when the precision decreases on the dev set
-     * @param trainData
-     * @param holdoutData
+     * @return number of examples after which the scales may have decayed by MIN_SCALE, at least one mini-batch per
+     * thread and at most numExamples
      */
-    public void train(List<Datum> trainData, List<Datum> holdoutData) {
-
-        SimpleMatrix Usaved = U.copy();
-        SimpleMatrix Wsaved = W.copy();
-        SimpleMatrix Lsaved = L.copy();
-
-        List<List<Datum>> allExamples = yieldExamples(trainData);
-        List<List<Datum>> holdoutExamples = yieldExamples(holdoutData);
+    private int hogwildSegmentSize(int numExamples, double lrU, double lrW) {
+        double decay = 1. - lambda * Math.max(lrU, lrW);
+        if (decay >= 1.) {
+            return numExamples;
+        }
+        double size = decay > 0. ? Math.log(MIN_SCALE) / Math.log(decay) : 0.;
+        return (int) Math.max(numThreads * batchSize, Math.min(size, numExamples));
+    }
 
-        double precision = 0;
-        double newPrecision = 0;
-        for (int epoch = 0; epoch < maxEpochs; epoch++) {
-            long startTime = System.currentTimeMillis();
-
-            // Compute learning rates for this epoch
-            double lrU = lrU0 / (1. + ((double) epoch / tau));
-            double lrW = lrW0 / (1. + ((double) epoch / tau));
-            double lrL = lrL0 / (1. + ((double) epoch / tau));
-
-            int n = 0;
-            for (List<Datum> buffer: allExamples) {
-                updateWeights(buffer, lrU, lrW, lrL);
-                n++;
-
-                if (n % 10000 == 0) {
-                    long sofarTime = System.currentTimeMillis();
-                    System.out.print(String.format(
-                            "\rTraining (%d examples seen in %ds)", n, (sofarTime - startTime) / 1000));
+    /**
+     * Hogwild SGD on the examples from (included) to (excluded) of the order, split in one contiguous shard per worker
+     * @param seen: examples seen in the epoch, for the progress
+     */
+    private void trainHogwildSegment(ExecutorService pool, Workspace[] workspaces, final Corpus allExamples,
+                                     final int[] order, int segmentFrom, int segmentTo,
+                                     final double lrU, final double lrW, final double lrL, final AtomicInteger seen,
+                                     final long startTime, final long deadline) {
+        int segmentSize = segmentTo - segmentFrom;
+        int shardSize = (segmentSize + numThreads - 1) / numThreads;
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < numThreads; t++) {
+            final int from = segmentFrom + Math.min(t * shardSize, segmentSize);
+            final int to = Math.min(from + shardSize, segmentTo);
+            final Workspace ws = workspaces[t];
+            futures.add(pool.submit(new Runnable() {
+                public void run() {
+                    long allocated = ws.counters != null ? Telemetry.threadAllocatedBytes() : -1;
+                    for (int i = from; i < to; i += batchSize) {
+                        int end = Math.min(i + batchSize, to);
+                        updateWeights(allExamples, order, i, end, ws, lrU, lrW, lrL);
+
+                        int n = seen.addAndGet(end - i);
+                        if (n / 10000 != (n - end + i) / 10000) {
+                            long sofarTime = System.currentTimeMillis();
+                            if (verbose) {
+                                System.out.print(String.format(
+                                        "\rTraining (%d examples seen in %ds)", n, (sofarTime - startTime) / 1000));
+                            }
+                            if (sofarTime > deadline) {
+                                break;
+                            }
+                        }
+                    }
+                    if (ws.counters != null) {
+                        ws.counters.addAllocatedSince(allocated);
+                    }
                 }
-             }
-
-            System.out.print("\rComputing error.");
-            newPrecision = getPrecision(holdoutExamples, U.scale(dropoutZ), W.scale(dropoutX));
-
-            long endTime = System.currentTimeMillis();
-            System.out.println(String.format(
-                    "\rEpoch %d, delta U %f, delta W %f, delta L %f, " +
-                            "holdout set precision %.2f%%, (iteration time %ds).",
-                    epoch, U.minus(Usaved).normF(), W.minus(Wsaved).normF(), L.minus(Lsaved).normF(),
-                    100 * newPrecision, (endTime - startTime) / 1000));
+            }));
+        }
 
-            if (newPrecision < precision){
-            	break;
+        try {
+            for (Future<?> future : futures) {
+                future.get();
             }
-
-            precision = newPrecision;
-            Usaved = U.copy();
-            Wsaved = W.copy();
-            Lsaved = L.copy();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Training interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Training worker failed", e.getCause());
         }
-
-        U.scale(dropoutZ);
-        W.scale(dropoutX);
     }
 
     /**
@@ -524,18 +706,74 @@ public class WindowModel {
      * @param allExamples
      * @return
      */
-    public double getPrecision(List<List<Datum>> allExamples, SimpleMatrix U, SimpleMatrix W) {
-        double correct_guesses = 0;
-        double tokens = 0;
-        for (List<Datum> buffer: allExamples) {
-            Datum middleWord = buffer.get(windowSize / 2);
-            String predictedLabel = predictLabel(buffer, U, W);
-            if (middleWord.label.equals(predictedLabel)) {
-            	correct_guesses++;
+    public double getPrecision(Corpus allExamples, SimpleMatrix U, SimpleMatrix W) {
+        int correct_guesses = countCorrect(allExamples, 0, allExamples.size(),
+                U.getMatrix(), 1., W.getMatrix(), 1., getWorkspace());
+        return (double) correct_guesses / allExamples.size();
+    }
+
+    /**
+     * Computes the precision with the current parameters, U and W being scaled by uScale and wScale without copying
+     * them. The examples are split in one shard per workspace, the shards are evaluated in parallel on the pool
+     * (serially on the first workspace when there is no pool) and their counts are merged.
+     * @param allExamples
+     * @return
+     */
+    private double getPrecision(final Corpus allExamples, final double uScale, final double wScale,
+                                ExecutorService pool, Workspace[] workspaces) {
+        final DenseMatrix64F Umat = U.getMatrix();
+        final DenseMatrix64F Wmat = W.getMatrix();
+        int numExamples = allExamples.size();
+        if (pool == null) {
+            return (double) countCorrect(allExamples, 0, numExamples, Umat, uScale, Wmat, wScale, workspaces[0])
+                    / numExamples;
+        }
+
+        int shardSize = (numExamples + workspaces.length - 1) / workspaces.length;
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < workspaces.length; t++) {
+            final int from = Math.min(t * shardSize, numExamples);
+            final int to = Math.min(from + shardSize, numExamples);
+            final Workspace ws = workspaces[t];
+            futures.add(pool.submit(new Callable<Integer>() {
+                public Integer call() {
+                    return countCorrect(allExamples, from, to, Umat, uScale, Wmat, wScale, ws);
+                }
+            }));
+        }
+
+        int correct_guesses = 0;
+        try {
+            for (Future<Integer> future : futures) {
+                correct_guesses += future.get();
             }
-            tokens++;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Evaluation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Evaluation worker failed", e.getCause());
         }
-        return correct_guesses/tokens;
+        return (double) correct_guesses / numExamples;
+    }
+
+    /**
+     * Counts the correct guesses on the examples from (included) to (excluded), only reads U, W and L
+     * @return number of correct guesses
+     */
+    private int countCorrect(Corpus allExamples, int from, int to,
+                             DenseMatrix64F U, double uScale, DenseMatrix64F W, double wScale, Workspace ws) {
+        int correct_guesses = 0;
+        for (int start = from; start < to; start += ws.batchSize) {
+            int end = Math.min(start + ws.batchSize, to);
+            loadBatch(allExamples, null, start, end, ws);
+            ws.forward(U, uScale, W, wScale, false);
+            for (int b = 0; b < end - start; b++) {
+                if (ws.label[b] == ws.predicted(b)) {
+                    correct_guesses++;
+                }
+            }
+        }
+        return correct_guesses;
     }
     
    /**
@@ -548,11 +786,21 @@ public class WindowModel {
      * @return
      */
     public String predictLabel(List<Datum> buffer, SimpleMatrix U, SimpleMatrix W) {
-        List<Integer> inputIndex = getLindFromBuffer(buffer);
-        SimpleMatrix x = getXFromLind(inputIndex);
-        SimpleMatrix xbiased = concatenateWithBias(x);
-        SimpleMatrix P = computePFromUWx(U, W, xbiased);
-        return labels.get(argmax(P));
+        return predictLabel(buffer, U, W, getWorkspace());
+    }
+
+    /**
+     * Predict label word in the middle of buffer using the given workspace
+     * @param buffer
+     * @param ws
+     * @return
+     */
+    public String predictLabel(List<Datum> buffer, SimpleMatrix U, SimpleMatrix W, Workspace ws) {
+        ws.setBatch(1);
+        getLindFromBuffer(buffer, ws.index, 0);
+        ws.loadX(L);
+        ws.forward(U.getMatrix(), 1., W.getMatrix(), 1., false);
+        return labels.get(ws.predicted(0));
     }
 
     /**
@@ -561,7 +809,15 @@ public class WindowModel {
      * @return
      */
     public String predictLabel(List<Datum> buffer) {
-        return predictLabel(buffer, U, W);
+        ProjectionCache cache = getProjectionCache();
+        if (cache == null) {
+            return predictLabel(buffer, U, W);
+        }
+        Workspace ws = getWorkspace();
+        ws.setBatch(1);
+        getLindFromBuffer(buffer, ws.index, 0);
+        ws.forward(cache, U.getMatrix(), 1.);
+        return labels.get(ws.predicted(0));
     }
 
     /**
@@ -571,14 +827,19 @@ public class WindowModel {
      * @throws IOException
      */
     public void test(List<Datum> testData, String outputFile) throws IOException {
-    	FileWriter fw = new FileWriter(outputFile);
-        List<List<Datum>> allExamples = yieldExamples(testData);
+        Corpus allExamples = encode(testData, true);
+        new TaggerPipeline(this, Runtime.getRuntime().availableProcessors(), batchSize)
+                .run(Collections.singletonList(allExamples).iterator(), outputFile);
+    }
 
-        for (List<Datum> buffer: allExamples) {
-            Datum middleWord = buffer.get(windowSize / 2);
-            String predictedLabel = predictLabel(buffer);
-            fw.write(String.format("%s\t%s\t%s\n", middleWord.word, middleWord.label, predictedLabel));
-        }
-    	fw.close();
+    /**
+     * Tags a labeled file and outputs to file, streaming it on all the cores
+     * @param testFile
+     * @param outputFile
+     * @throws IOException
+     */
+    public void test(String testFile, String outputFile) throws IOException {
+        new TaggerPipeline(this, Runtime.getRuntime().availableProcessors(), batchSize)
+                .run(CorpusReader.sentences(testFile, vocab, labels, windowSize, true), outputFile);
     }
 }
@@ -0,0 +1,228 @@
+package cs224n.deep;
+
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static cs224n.deep.Utils.*;
+
+/**
+ * Preallocated buffers for the forward and backward pass of the window model.
+ * A workspace is allocated once per worker and reused for every example, so that no matrix is created per token.
+ *
+ * A workspace holds a mini-batch of up to batchSize windows, one window per row: X is n x (windowSize * wordSize + 1),
+ * so that the forward pass and the U and W gradients are each a single matrix-matrix product for the whole batch.
+ * X and H keep their bias as last column.
+ */
+public class Workspace {
+
+    public final int windowSize, wordSize, hiddenSize, K, batchSize;
+
+    // Number of windows in the current batch
+    int n;
+
+    // Indices in L of the words of each window (n x windowSize) and index of the true label of each window, -1 when
+    // the labels are unknown
+    public final int[] index;
+    public final int[] label;
+
+    // Biased input and its dropout mask
+    final DenseMatrix64F X, Xkept;
+    // Hidden layer pre-activation, its dropout mask and biased activation
+    final DenseMatrix64F Z, Zkept, H;
+    // Output probabilities and error Y - P
+    final DenseMatrix64F P, E;
+    // Cross-entropy and most likely label of each window
+    final double[] loss;
+    final int[] argmax;
+    // Gradients: E U (biased), delta and delta W (biased)
+    final DenseMatrix64F EU, Delta, Xgrad;
+    // Gradients of U and W, and distinct words of the batch with their summed gradients, for the adaptive optimizers
+    // only: null until allocateGradients
+    DenseMatrix64F Ugrad, Wgrad;
+    int[] rows;
+    double[] rowGrad;
+    // Index + 1 in rows of each word of the vocabulary, 0 for the words not in rows
+    int[] rowOf;
+
+    final Random rand = new Random();
+
+    // Telemetry of the worker using this workspace, null when disabled
+    Telemetry.Counters counters;
+
+    public Workspace(int windowSize, int wordSize, int hiddenSize, int K) {
+        this(windowSize, wordSize, hiddenSize, K, 1);
+    }
+
+    public Workspace(int windowSize, int wordSize, int hiddenSize, int K, int batchSize) {
+        this.windowSize = windowSize;
+        this.wordSize = wordSize;
+        this.hiddenSize = hiddenSize;
+        this.K = K;
+        this.batchSize = batchSize;
+
+        int inputSize = windowSize * wordSize + 1;
+        index = new int[batchSize * windowSize];
+        label = new int[batchSize];
+        Arrays.fill(label, -1);
+        X = new DenseMatrix64F(batchSize, inputSize);
+        Xkept = new DenseMatrix64F(batchSize, inputSize);
+        Z = new DenseMatrix64F(batchSize, hiddenSize);
+        Zkept = new DenseMatrix64F(batchSize, hiddenSize);
+        H = new DenseMatrix64F(batchSize, hiddenSize + 1);
+        P = new DenseMatrix64F(batchSize, K);
+        E = new DenseMatrix64F(batchSize, K);
+        loss = new double[batchSize];
+        argmax = new int[batchSize];
+        EU = new DenseMatrix64F(batchSize, hiddenSize + 1);
+        Delta = new DenseMatrix64F(batchSize, hiddenSize);
+        Xgrad = new DenseMatrix64F(batchSize, inputSize);
+        setBatch(batchSize);
+    }
+
+    /**
+     * Sets the number of windows in the current batch, without reallocating
+     * @param n: at most batchSize
+     */
+    public void setBatch(int n) {
+        assert (n > 0 && n <= batchSize);
+        this.n = n;
+        X.reshape(n, X.numCols, false);
+        Xkept.reshape(n, Xkept.numCols, false);
+        Z.reshape(n, Z.numCols, false);
+        Zkept.reshape(n, Zkept.numCols, false);
+        H.reshape(n, H.numCols, false);
+        P.reshape(n, P.numCols, false);
+        E.reshape(n, E.numCols, false);
+        EU.reshape(n, EU.numCols, false);
+        Delta.reshape(n, Delta.numCols, false);
+        Xgrad.reshape(n, Xgrad.numCols, false);
+    }
+
+    /**
+     * Allocates the gradient buffers of the adaptive optimizers, once
+     * @param numWords: number of words of the vocabulary
+     */
+    void allocateGradients(int numWords) {
+        if (Ugrad == null) {
+            Ugrad = new DenseMatrix64F(K, hiddenSize + 1);
+            Wgrad = new DenseMatrix64F(hiddenSize, X.numCols);
+            rows = new int[batchSize * windowSize];
+            rowGrad = new double[batchSize * windowSize * wordSize];
+            rowOf = new int[numWords];
+        }
+    }
+
+    /**
+     * Copies the rows of L of the current windows (index) in X, and sets the bias
+     * @param L
+     */
+    public void loadX(Embeddings L) {
+        int inputSize = X.numCols;
+        for (int b = 0; b < n; b++) {
+            for (int i = 0; i < windowSize; i++) {
+                L.copyRow(index[b * windowSize + i], X.data, b * inputSize + i * wordSize);
+            }
+            X.data[b * inputSize + inputSize - 1] = 1.0;
+        }
+    }
+
+    /**
+     * Draws new dropout masks for X and Z, the bias is always kept
+     * @param dropoutX: probability of keeping a unit of x
+     * @param dropoutZ: probability of keeping a unit of z
+     */
+    public void drawDropout(double dropoutX, double dropoutZ) {
+        fillDropvector(Xkept, dropoutX, rand);
+        int inputSize = Xkept.numCols;
+        for (int b = 0; b < n; b++) {
+            Xkept.data[b * inputSize + inputSize - 1] = 1.0;
+        }
+        fillDropvector(Zkept, dropoutZ, rand);
+    }
+
+    /**
+     * Forward pass P = softmax(uScale * [tanh(wScale * X W^T), 1] U^T), softmax being applied on each row
+     * @param dropout: apply the dropout masks on X and Z
+     */
+    public void forward(DenseMatrix64F U, double uScale, DenseMatrix64F W, double wScale, boolean dropout) {
+        if (dropout) {
+            CommonOps.elementMult(X, Xkept);
+        }
+
+        CommonOps.multTransB(X, W, Z);
+        if (wScale != 1.) {
+            CommonOps.scale(wScale, Z);
+        }
+        if (dropout) {
+            CommonOps.elementMult(Z, Zkept);
+        }
+        output(U, uScale);
+    }
+
+    /**
+     * Forward pass without dropout, the hidden pre-activation of each window being read from the projection cache.
+     * X is not loaded, only the indices of the words are used.
+     */
+    public void forward(ProjectionCache cache, DenseMatrix64F U, double uScale) {
+        for (int b = 0; b < n; b++) {
+            cache.project(index, b * windowSize, Z.data, b * hiddenSize);
+        }
+        output(U, uScale);
+    }
+
+    /**
+     * Computes H and P from Z, and for the windows with a label E and their cross-entropy
+     */
+    private void output(DenseMatrix64F U, double uScale) {
+        for (int b = 0; b < n; b++) {
+            int offset = b * (hiddenSize + 1);
+            for (int i = 0; i < hiddenSize; i++) {
+                H.data[offset + i] = tanh(Z.data[b * hiddenSize + i]);
+            }
+            H.data[offset + hiddenSize] = 1.0;
+        }
+
+        CommonOps.multTransB(H, U, P);
+        if (uScale != 1.) {
+            CommonOps.scale(uScale, P);
+        }
+        for (int b = 0; b < n; b++) {
+            loss[b] = softmaxCrossEntropy(P.data, b, K, label[b], E.data, argmax);
+        }
+    }
+
+    /**
+     * Backward pass, computes delta and the gradient with respect to X from E, for the labels of the batch.
+     * Must be called after forward, with the labels set before it, and before U or W are updated.
+     */
+    public void backward(DenseMatrix64F U, double uScale, DenseMatrix64F W, double wScale) {
+        // The last (bias) column of E U is ignored instead of copying U without its last column
+        CommonOps.mult(uScale, E, U, EU);
+        for (int b = 0; b < n; b++) {
+            for (int i = 0; i < hiddenSize; i++) {
+                // derivative of tanh, H already holds tanh(Z)
+                double tanh = H.data[b * (hiddenSize + 1) + i];
+                Delta.data[b * hiddenSize + i] = (1.0 - tanh * tanh) * EU.data[b * (hiddenSize + 1) + i];
+            }
+        }
+
+        CommonOps.mult(wScale, Delta, W, Xgrad);
+    }
+
+    /**
+     * @return index of the most likely label of window b after a forward pass
+     */
+    public int predicted(int b) {
+        return argmax[b];
+    }
+
+    /**
+     * @return cross-entropy of the label of window b after a forward pass, 0 if it is unknown
+     */
+    public double loss(int b) {
+        return loss[b];
+    }
+}